@@ -0,0 +1,23 @@
+package top.yertinmc.regioncore.benchmarks;
+
+/**
+ * A stub <code>World</code> type for benchmarks, only with a name.
+ */
+public final class BenchmarkWorld {
+
+    private final String name;
+
+    public BenchmarkWorld(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,62 @@
+package top.yertinmc.regioncore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmarks of <code>RegionDataManager.get/set/move</code> at random blocks of the filled area.
+ */
+public class BlockAccessBenchmark extends RegionBenchmarkState {
+
+    private static final int POSITIONS = 4096; // Power of 2
+
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        setUp();
+        Random random = new Random(SEED + 1);
+        int width = getAreaWidth();
+        xs = new int[POSITIONS];
+        ys = new int[POSITIONS];
+        zs = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextInt(width);
+            ys[i] = random.nextInt(height);
+            zs[i] = random.nextInt(width);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        tearDown();
+    }
+
+    @Benchmark
+    public Object get() {
+        int i = next++ & (POSITIONS - 1);
+        return manager.get(world, xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public void set() {
+        int i = next++ & (POSITIONS - 1);
+        manager.set(world, xs[i], ys[i], zs[i], VALUES[i & (VALUES.length - 1)]);
+    }
+
+    @Benchmark
+    public void move() {
+        int i = next++ & (POSITIONS - 1);
+        int j = (i + 1) & (POSITIONS - 1);
+        manager.move(world, xs[i], ys[i], zs[i], xs[j], ys[j], zs[j]);
+    }
+
+}
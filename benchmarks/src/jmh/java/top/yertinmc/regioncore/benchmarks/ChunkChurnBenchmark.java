@@ -0,0 +1,49 @@
+package top.yertinmc.regioncore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Benchmarks of <code>loadChunk</code> and <code>unloadChunk</code> of a chunk in the filled area,
+ * like players walking in and out. With no idle regions kept, every load reads the region file again.
+ */
+public class ChunkChurnBenchmark extends RegionBenchmarkState {
+
+    @Param({"0", "4"})
+    public int idleRegions;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        setUp();
+        // Only the churned chunk is in using, so the region is unloaded or idle after every unload
+        for (int x = 0; x < AREA_CHUNKS; x++) {
+            for (int z = 0; z < AREA_CHUNKS; z++) {
+                manager.unloadChunk(world, x, z);
+            }
+        }
+        manager.flush();
+        manager.setIdleRegionLimits(idleRegions, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        tearDown();
+    }
+
+    @Benchmark
+    public void loadAndUnload() {
+        int chunk = next++ & (AREA_CHUNKS * AREA_CHUNKS - 1);
+        int x = chunk / AREA_CHUNKS;
+        int z = chunk % AREA_CHUNKS;
+        manager.loadChunk(world, x, z);
+        manager.unloadChunk(world, x, z);
+    }
+
+}
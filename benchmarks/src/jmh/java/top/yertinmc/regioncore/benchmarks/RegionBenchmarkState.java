@@ -0,0 +1,138 @@
+package top.yertinmc.regioncore.benchmarks;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+import top.yertinmc.regioncore.RegionDataDefinition;
+import top.yertinmc.regioncore.RegionDataManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared state of the storage benchmarks: a manager in a temporary directory, with the first
+ * <code>AREA_CHUNKS</code> * <code>AREA_CHUNKS</code> chunks of a world filled by the density.
+ * Subclasses set up the state with <code>setUp()</code> and clean it with <code>tearDown()</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class RegionBenchmarkState {
+
+    /**
+     * The width of the filled area in chunks. The area is in the first region if regions are not smaller.
+     */
+    public static final int AREA_CHUNKS = 4;
+
+    /**
+     * The distinct values of blocks, few like most real data.
+     */
+    public static final String[] VALUES = {"stone", "dirt", "grass", "sand", "gravel", "log", "leaves", "water"};
+
+    protected static final int SEED = 20211016;
+
+    @Param({"8", "32"})
+    public int regionSize;
+
+    @Param({"16"})
+    public int chunkWidth;
+
+    @Param({"64", "256"})
+    public int height;
+
+    @Param({"0.01", "0.1", "1.0"})
+    public double density;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    protected final BenchmarkWorld world = new BenchmarkWorld("bench");
+    protected File directory;
+    protected RegionDataManager<BenchmarkWorld> manager;
+
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("regioncore-bench").toFile();
+        manager = createManager();
+        loadArea(manager);
+        Random random = new Random(SEED);
+        int width = getAreaWidth();
+        for (int x = 0; x < width; x++) {
+            for (int z = 0; z < width; z++) {
+                for (int y = 0; y < height; y++) {
+                    if (random.nextDouble() < density)
+                        manager.set(world, x, y, z, VALUES[random.nextInt(VALUES.length)]);
+                }
+            }
+        }
+        manager.flush();
+    }
+
+    protected void tearDown() {
+        manager.flush();
+        delete(directory);
+    }
+
+    /**
+     * Create a manager with the parameters, saving to the directory of this state.
+     *
+     * @return The manager
+     */
+    protected RegionDataManager<BenchmarkWorld> createManager() {
+        return new RegionDataManager<>(new RegionDataDefinition.Builder<BenchmarkWorld>()
+                .regionSize(regionSize)
+                .chunkWidth(chunkWidth)
+                .defaultWorldHeight(height)
+                .worldName(BenchmarkWorld::getName)
+                .codec(new StringCodec())
+                .maxPaletteSize(16) // Strings are immutable, so sharing them in palettes is safe
+                .offHeap(offHeap)
+                .build(), NOPLogger.NOP_LOGGER, directory);
+    }
+
+    /**
+     * Load all the chunks in the filled area.
+     *
+     * @param manager The manager
+     */
+    protected void loadArea(RegionDataManager<BenchmarkWorld> manager) {
+        for (int x = 0; x < AREA_CHUNKS; x++) {
+            for (int z = 0; z < AREA_CHUNKS; z++) {
+                manager.loadChunk(world, x, z);
+            }
+        }
+    }
+
+    /**
+     * Get the width of the filled area in blocks.
+     *
+     * @return The width
+     */
+    protected int getAreaWidth() {
+        return AREA_CHUNKS * chunkWidth;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+}
@@ -0,0 +1,83 @@
+package top.yertinmc.regioncore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import top.yertinmc.regioncore.LoadedRegionData;
+import top.yertinmc.regioncore.WorldRegionDataManager;
+import top.yertinmc.regioncore.io.ChunkData;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of writing and reading the region with the filled area.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegionIoBenchmark extends RegionBenchmarkState {
+
+    private WorldRegionDataManager<BenchmarkWorld> worldManager;
+    private LoadedRegionData<BenchmarkWorld> region;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        setUp();
+        worldManager = manager.getManager(world);
+        region = worldManager.getRegion(0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        tearDown();
+    }
+
+    /**
+     * Rewrite the region with a chunk changed, only the changed chunk is encoded again.
+     */
+    @Benchmark
+    public void writeChanged() {
+        manager.set(world, 0, 0, 0, VALUES[0]);
+        region.write();
+    }
+
+    /**
+     * Rewrite the region with all the chunks encoded again.
+     */
+    @Benchmark
+    public void writeAll() {
+        for (int x = 0; x < AREA_CHUNKS; x++) {
+            for (int z = 0; z < AREA_CHUNKS; z++) {
+                Object chunk = region.getChunk(x, z);
+                if (chunk instanceof ChunkData)
+                    ((ChunkData) chunk).markDirty();
+            }
+        }
+        region.markDirty();
+        region.write();
+    }
+
+    /**
+     * Read the region file, chunks are kept encoded.
+     */
+    @Benchmark
+    public LoadedRegionData<BenchmarkWorld> read() {
+        return new LoadedRegionData<>(worldManager, world, 0, 0);
+    }
+
+    /**
+     * Read the region file and decode all the chunks of the filled area.
+     */
+    @Benchmark
+    public LoadedRegionData<BenchmarkWorld> readAndDecode() {
+        LoadedRegionData<BenchmarkWorld> read = new LoadedRegionData<>(worldManager, world, 0, 0);
+        for (int x = 0; x < AREA_CHUNKS; x++) {
+            for (int z = 0; z < AREA_CHUNKS; z++) {
+                read.getChunk(x, z);
+            }
+        }
+        return read;
+    }
+
+}
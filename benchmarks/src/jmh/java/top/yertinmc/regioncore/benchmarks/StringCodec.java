@@ -0,0 +1,27 @@
+package top.yertinmc.regioncore.benchmarks;
+
+import top.yertinmc.regioncore.io.BlockCodec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A codec of strings in UTF-8, so block data in benchmarks are decoded objects like real data.
+ */
+public final class StringCodec implements BlockCodec<String> {
+
+    @Override
+    public void encode(String value, DataOutput out) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String decode(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
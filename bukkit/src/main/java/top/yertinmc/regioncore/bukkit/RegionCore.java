@@ -7,6 +7,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -20,15 +21,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import top.yertinmc.regioncore.RegionDataDefinition;
 import top.yertinmc.regioncore.RegionDataManager;
+import top.yertinmc.regioncore.SaveReport;
+import top.yertinmc.regioncore.io.ChunkCompression;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("unused")
 public class RegionCore extends JavaPlugin {
 
     public static final Logger LOGGER_TRIVIAL = LoggerFactory.getLogger("RegionData/Trivial");
     public static final Gson GSON = new GsonBuilder().create();
+    public static final File TRIVIAL_DIRECTORY = new File("regioncore_trivial").getAbsoluteFile();
+    public static final RegionCoreTrivialKeyDictionary TRIVIAL_KEYS =
+            new RegionCoreTrivialKeyDictionary(new File(TRIVIAL_DIRECTORY, "keys.dat"));
     @SuppressWarnings({"Convert2MethodRef", "SpellCheckingInspection"})
     public static final RegionDataManager<World> TRIVIAL = new RegionDataManager<World>(new RegionDataDefinition.Builder<World>()
             .regionSize(64)
@@ -36,10 +43,12 @@ public class RegionCore extends JavaPlugin {
             .defaultWorldHeight(256)
             .worldName((world) -> world.getName()) // for 1.12.2 compat
             .worldEquals((w1, w2) -> w1.getUID().equals(w2.getUID()))
-            .dataSerializer((data) -> GSON.toJson(data).getBytes())
-            .dataDeserializer((data) -> GSON.fromJson(new String(data), JsonObject.class))
+            .codec(new RegionCoreTrivialCodec(TRIVIAL_KEYS, GSON))
             .dataIsEmpty((data) -> ((JsonObject) data).size() == 0)
-            .build(), LOGGER_TRIVIAL, new File("regioncore_trivial").getAbsoluteFile());
+            .compression(ChunkCompression.deflate())
+            // Set before the plugin loads, as values got from the API are new objects each time off heap
+            .offHeap(Boolean.getBoolean("regioncore.trivial.offHeap"))
+            .build(), LOGGER_TRIVIAL, TRIVIAL_DIRECTORY);
 
     static {
         Runtime.getRuntime().addShutdownHook(new RegionCoreTrivialAutoSaver());
@@ -50,14 +59,36 @@ public class RegionCore extends JavaPlugin {
         super.onEnable();
         saveDefaultConfig();
         Bukkit.getPluginManager().registerEvents(new EventListener(), this);
+        RegionCoreStatsCommand statsCommand = new RegionCoreStatsCommand();
+        PluginCommand command = getCommand("regioncore");
+        if (command != null) {
+            command.setExecutor(statsCommand);
+            command.setTabCompleter(statsCommand);
+        }
         int time = getConfig().getInt("trivial_auto_save_period", 60000);
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(this, TRIVIAL::write, time, time);
+        TRIVIAL.setIdleRegionLimits(getConfig().getInt("trivial_idle_regions", 4),
+                getConfig().getLong("trivial_idle_region_bytes", 32L * 1024 * 1024));
+        TRIVIAL.setMaxConcurrentWrites(Math.max(1, getConfig().getInt("trivial_concurrent_writes", 4)));
+        TRIVIAL.setJournal(getConfig().getBoolean("trivial_journal", true),
+                Math.max(0, getConfig().getLong("trivial_journal_commit_interval", 50)),
+                Math.max(0, getConfig().getLong("trivial_journal_compact_bytes", 16L * 1024 * 1024)));
+        if (getConfig().getBoolean("trivial_write_behind", true)) {
+            // Only snapshots are taken in the main thread, serializing and writing are in the saver thread
+            Bukkit.getScheduler().scheduleSyncRepeatingTask(this, TRIVIAL::writeAsync, time, time);
+        } else {
+            Bukkit.getScheduler().scheduleSyncRepeatingTask(this, TRIVIAL::write, time, time);
+        }
     }
 
     @Override
     public void onDisable() {
         super.onDisable();
-        TRIVIAL.write();
+        long timeout = getConfig().getLong("trivial_shutdown_save_timeout", 0);
+        SaveReport<World> report = timeout > 0 ? TRIVIAL.flushParallel(timeout, TimeUnit.MILLISECONDS)
+                : TRIVIAL.flushParallel();
+        if (!report.isComplete())
+            LOGGER_TRIVIAL.warn("Trivial data not all saved on disable: {}", report);
+        TRIVIAL.closeJournals();
     }
 
     public static void onBlockRemove(BlockEvent event) {
@@ -84,7 +115,8 @@ public class RegionCore extends JavaPlugin {
 
         @EventHandler(priority = EventPriority.HIGHEST)
         public void onChunkLoad(ChunkLoadEvent event) {
-            TRIVIAL.loadChunk(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+            // Read the region file off the main thread, block changes before loaded are queued
+            TRIVIAL.loadChunkAsync(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
         }
 
         @EventHandler(priority = EventPriority.HIGHEST)
@@ -0,0 +1,60 @@
+package top.yertinmc.regioncore.bukkit;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+import top.yertinmc.regioncore.metrics.Counter;
+import top.yertinmc.regioncore.metrics.Gauge;
+import top.yertinmc.regioncore.metrics.LatencyHistogram;
+import top.yertinmc.regioncore.metrics.RegionMetrics;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The command <code>/regioncore stats</code>, showing the current metrics of the trivial data.
+ */
+public class RegionCoreStatsCommand implements CommandExecutor, TabCompleter {
+
+    public static final String PERMISSION = "regioncore.stats";
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length != 1 || !args[0].equalsIgnoreCase("stats"))
+            return false;
+        if (!sender.hasPermission(PERMISSION)) {
+            sender.sendMessage(ChatColor.RED + "You do not have permission to see RegionCore stats.");
+            return true;
+        }
+        RegionMetrics metrics = RegionCore.TRIVIAL.getMetrics();
+        sender.sendMessage(ChatColor.GOLD + "RegionCore trivial data stats");
+        for (Gauge gauge : metrics.getGauges()) {
+            sender.sendMessage(ChatColor.GRAY + gauge.getName() + ": " + ChatColor.WHITE + gauge.get());
+        }
+        for (Counter counter : metrics.getCounters()) {
+            sender.sendMessage(ChatColor.GRAY + counter.getName() + ": " + ChatColor.WHITE + counter.get());
+        }
+        for (LatencyHistogram histogram : metrics.getHistograms()) {
+            sender.sendMessage(ChatColor.GRAY + histogram.getName() + ": " + ChatColor.WHITE
+                    + histogram.getCount() + " times, mean " + millis(histogram.getMeanNanos())
+                    + ", p50 " + millis(histogram.getPercentileNanos(50))
+                    + ", p99 " + millis(histogram.getPercentileNanos(99))
+                    + ", max " + millis(histogram.getMaxNanos()));
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 1 && "stats".startsWith(args[0].toLowerCase()))
+            return Collections.singletonList("stats");
+        return Collections.emptyList();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+
+}
@@ -9,7 +9,7 @@ public class RegionCoreTrivialAutoSaver extends Thread {
 
     @Override
     public void run() {
-        RegionCore.TRIVIAL.write();
+        RegionCore.TRIVIAL.flushParallel();
     }
 
 }
@@ -0,0 +1,252 @@
+package top.yertinmc.regioncore.bukkit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import top.yertinmc.regioncore.io.BlockCodec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The codec of the trivial data, a compact binary form of <code>JsonObject</code>.
+ * Keys are saved as ids in a <code>RegionCoreTrivialKeyDictionary</code>, and numbers as varints when possible.
+ * Data saved as JSON text by older versions are still read, and saved in the binary form when changed.
+ * <pre>
+ * byte   FORMAT_BINARY, JSON text starts with '{' instead
+ * varint count of the members
+ * For every member:
+ *   varint id of the key
+ *   ...    element, a tag byte and the value
+ * </pre>
+ *
+ * @see RegionCoreTrivialKeyDictionary
+ */
+public class RegionCoreTrivialCodec implements BlockCodec<JsonObject> {
+
+    /**
+     * The first byte of data in the binary form.
+     */
+    public static final byte FORMAT_BINARY = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_LONG = 3; // Zigzag varint
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_DECIMAL = 5; // Text of the number
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_ARRAY = 7;
+    private static final byte TAG_OBJECT = 8;
+
+    private final RegionCoreTrivialKeyDictionary keys;
+    private final Gson gson;
+
+    /**
+     * @param keys The dictionary of keys
+     * @param gson The gson for reading data saved as JSON text
+     */
+    public RegionCoreTrivialCodec(RegionCoreTrivialKeyDictionary keys, Gson gson) {
+        this.keys = keys;
+        this.gson = gson;
+    }
+
+    @Override
+    public void encode(JsonObject value, DataOutput out) throws IOException {
+        out.writeByte(FORMAT_BINARY);
+        writeMembers(value, out);
+    }
+
+    @Override
+    public JsonObject decode(ByteBuffer data) {
+        if (!data.hasRemaining() || data.get(data.position()) != FORMAT_BINARY) {
+            // JSON text, as the serializer of older versions wrote with the default charset
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return gson.fromJson(new String(bytes), JsonObject.class);
+        }
+        data.get();
+        try {
+            return readMembers(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (BufferUnderflowException e) {
+            throw new JsonParseException("Unexpected end of trivial data", e);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        keys.sync();
+    }
+
+    private void writeMembers(JsonObject object, DataOutput out) throws IOException {
+        writeVarInt(out, object.size());
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            writeVarInt(out, keys.getId(entry.getKey()));
+            writeElement(entry.getValue(), out);
+        }
+    }
+
+    private void writeElement(JsonElement element, DataOutput out) throws IOException {
+        if (element.isJsonObject()) {
+            out.writeByte(TAG_OBJECT);
+            writeMembers(element.getAsJsonObject(), out);
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            out.writeByte(TAG_ARRAY);
+            writeVarInt(out, array.size());
+            for (JsonElement item : array) {
+                writeElement(item, out);
+            }
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.writeByte(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            } else if (primitive.isNumber()) {
+                writeNumber(primitive.getAsNumber(), out);
+            } else {
+                out.writeByte(TAG_STRING);
+                writeString(out, primitive.getAsString());
+            }
+        } else {
+            out.writeByte(TAG_NULL);
+        }
+    }
+
+    private static void writeNumber(Number number, DataOutput out) throws IOException {
+        if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            out.writeByte(TAG_LONG);
+            writeVarLong(out, number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(number.doubleValue());
+        } else {
+            // Parsed from text or big numbers, integers are kept as varints, others as text to keep them exact
+            String text = number.toString();
+            long value;
+            try {
+                value = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                out.writeByte(TAG_DECIMAL);
+                writeString(out, text);
+                return;
+            }
+            out.writeByte(TAG_LONG);
+            writeVarLong(out, value);
+        }
+    }
+
+    private JsonObject readMembers(ByteBuffer data) throws IOException {
+        int size = readVarInt(data);
+        JsonObject object = new JsonObject();
+        for (int i = 0; i < size; i++) {
+            String key = keys.getKey(readVarInt(data));
+            object.add(key, readElement(data));
+        }
+        return object;
+    }
+
+    private JsonElement readElement(ByteBuffer data) throws IOException {
+        byte tag = data.get();
+        switch (tag) {
+            case TAG_NULL:
+                return JsonNull.INSTANCE;
+            case TAG_FALSE:
+                return new JsonPrimitive(false);
+            case TAG_TRUE:
+                return new JsonPrimitive(true);
+            case TAG_LONG:
+                return new JsonPrimitive(readVarLong(data));
+            case TAG_DOUBLE:
+                return new JsonPrimitive(data.getDouble());
+            case TAG_DECIMAL:
+                return new JsonPrimitive(new BigDecimal(readString(data)));
+            case TAG_STRING:
+                return new JsonPrimitive(readString(data));
+            case TAG_ARRAY:
+                int size = readVarInt(data);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(readElement(data));
+                }
+                return array;
+            case TAG_OBJECT:
+                return readMembers(data);
+            default:
+                throw new IOException("Unknown trivial data tag " + tag);
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer data) throws IOException {
+        int length = readVarInt(data);
+        if (length > data.remaining())
+            throw new IOException("Unexpected end of trivial data");
+        String value;
+        if (data.hasArray()) {
+            value = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            data.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        data.position(data.position() + length);
+        return value;
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = data.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer data) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = data.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Varlong too long");
+    }
+
+}
@@ -0,0 +1,155 @@
+package top.yertinmc.regioncore.bukkit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dictionary of JSON object keys of the trivial data, so a key is saved as a small number in every block.
+ * Keys are only appended, and synced to disk before the bytes using their ids are written, so region files and the
+ * journal never refer to a key not saved. The key strings are shared by all the decoded objects.
+ * <pre>
+ * For every key, in order of ids:
+ *   short length of the key
+ *   ...   key in modified UTF-8, see DataOutput#writeUTF
+ * </pre>
+ *
+ * @see RegionCoreTrivialCodec
+ */
+public class RegionCoreTrivialKeyDictionary {
+
+    private final File file;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object(); // Syncs one by one, so a sync returns after the keys synced
+    private volatile String[] keys;
+    private int size;
+    private FileChannel channel; // Guarded by this, opened when the first key added
+    private boolean unsynced; // Guarded by this
+
+    public RegionCoreTrivialKeyDictionary(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the id of a key. A new key is added and saved.
+     *
+     * @param key The key
+     * @return The id
+     */
+    public int getId(String key) throws IOException {
+        if (keys == null)
+            load();
+        Integer id = ids.get(key);
+        if (id != null)
+            return id;
+        return add(key);
+    }
+
+    /**
+     * Get the key of an id.
+     *
+     * @param id The id
+     * @return The key
+     * @throws IOException If the id is not in this dictionary
+     */
+    public String getKey(int id) throws IOException {
+        String[] keys = this.keys;
+        if (keys == null) {
+            load();
+            keys = this.keys;
+        }
+        if (id < 0 || id >= keys.length || keys[id] == null)
+            throw new IOException("Unknown JSON key id " + id + " in " + file);
+        return keys[id];
+    }
+
+    private synchronized void load() throws IOException {
+        if (keys != null)
+            return;
+        String[] keys = new String[16];
+        int size = 0;
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long end = 0;
+                while (true) {
+                    String key;
+                    try {
+                        key = raf.readUTF();
+                    } catch (EOFException | UTFDataFormatException e) {
+                        // A key partly written in a crash, never used by any region
+                        raf.setLength(end);
+                        break;
+                    }
+                    if (size == keys.length)
+                        keys = Arrays.copyOf(keys, size * 2);
+                    String interned = key.intern();
+                    keys[size] = interned;
+                    ids.put(interned, size++);
+                    end = raf.getFilePointer();
+                }
+            }
+        }
+        this.size = size;
+        this.keys = keys;
+    }
+
+    private synchronized int add(String key) throws IOException {
+        Integer id = ids.get(key);
+        if (id != null) // Added by another thread
+            return id;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(key);
+        if (channel == null)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+        long position = channel.size();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        unsynced = true; // Synced with the next region or journal write, not in the thread encoding
+        String[] keys = this.keys;
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size * 2);
+        String interned = key.intern();
+        keys[size] = interned;
+        this.keys = keys; // Published after filled
+        ids.put(interned, size);
+        return size++;
+    }
+
+    /**
+     * Sync the keys added to disk, so the ids can be written.
+     *
+     * @see RegionCoreTrivialCodec#sync()
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            FileChannel channel;
+            synchronized (this) {
+                if (!unsynced)
+                    return;
+                channel = this.channel;
+                unsynced = false; // Keys added meanwhile are synced by the next call
+            }
+            try {
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    unsynced = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+}
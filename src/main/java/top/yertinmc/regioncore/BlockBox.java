@@ -0,0 +1,83 @@
+package top.yertinmc.regioncore;
+
+/**
+ * A box of blocks in a world, including both the min and the max positions.
+ *
+ * @see WorldRegionDataManager#fill(BlockBox, Object)
+ */
+public final class BlockBox {
+
+    public final int minX;
+    public final int minY;
+    public final int minZ;
+    public final int maxX;
+    public final int maxY;
+    public final int maxZ;
+
+    /**
+     * Create a box between two corners, in any order.
+     *
+     * @param x1 The X position of a corner
+     * @param y1 The Y position of a corner
+     * @param z1 The Z position of a corner
+     * @param x2 The X position of the other corner
+     * @param y2 The Y position of the other corner
+     * @param z2 The Z position of the other corner
+     */
+    public BlockBox(int x1, int y1, int z1, int x2, int y2, int z2) {
+        this.minX = Math.min(x1, x2);
+        this.minY = Math.min(y1, y2);
+        this.minZ = Math.min(z1, z2);
+        this.maxX = Math.max(x1, x2);
+        this.maxY = Math.max(y1, y2);
+        this.maxZ = Math.max(z1, z2);
+    }
+
+    /**
+     * Is a block in this box?
+     *
+     * @param x The X position of the block
+     * @param y The Y position of the block
+     * @param z The Z position of the block
+     * @return TRUE if in this box
+     */
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    /**
+     * How many blocks in this box?
+     *
+     * @return The count
+     */
+    public long volume() {
+        return ((long) maxX - minX + 1) * ((long) maxY - minY + 1) * ((long) maxZ - minZ + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof BlockBox))
+            return false;
+        BlockBox that = (BlockBox) o;
+        return minX == that.minX && minY == that.minY && minZ == that.minZ
+                && maxX == that.maxX && maxY == that.maxY && maxZ == that.maxZ;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = minX;
+        result = result * 31 + minY;
+        result = result * 31 + minZ;
+        result = result * 31 + maxX;
+        result = result * 31 + maxY;
+        return result * 31 + maxZ;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + minX + ", " + minY + ", " + minZ + "] - [" + maxX + ", " + maxY + ", " + maxZ + "]";
+    }
+
+}
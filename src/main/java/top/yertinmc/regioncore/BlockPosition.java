@@ -0,0 +1,52 @@
+package top.yertinmc.regioncore;
+
+/**
+ * The position of a block in a world.
+ *
+ * @see WorldRegionDataManager#setAll(java.util.Map)
+ */
+public final class BlockPosition {
+
+    public final int x;
+    public final int y;
+    public final int z;
+
+    public BlockPosition(int x, int y, int z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Get the position moved by an offset.
+     *
+     * @param dx The X offset
+     * @param dy The Y offset
+     * @param dz The Z offset
+     * @return The new position
+     */
+    public BlockPosition offset(int dx, int dy, int dz) {
+        return new BlockPosition(x + dx, y + dy, z + dz);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof BlockPosition))
+            return false;
+        BlockPosition that = (BlockPosition) o;
+        return x == that.x && y == that.y && z == that.z;
+    }
+
+    @Override
+    public int hashCode() {
+        return (x * 31 + y) * 31 + z;
+    }
+
+    @Override
+    public String toString() {
+        return x + ", " + y + ", " + z;
+    }
+
+}
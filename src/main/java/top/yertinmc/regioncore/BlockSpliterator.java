@@ -0,0 +1,113 @@
+package top.yertinmc.regioncore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator of the blocks with data in a box, chunk by chunk.
+ * The box is cut into columns of blocks in the same chunk, and splitting halves the remaining columns,
+ * so scans of big boxes can run in parallel. Regions not loaded and chunks not created are skipped
+ * without visiting their blocks.
+ *
+ * @param <W> The type of <code>World</code>
+ * @see WorldRegionDataManager#spliterator(BlockBox)
+ */
+final class BlockSpliterator<W> implements Spliterator<Map.Entry<BlockPosition, Object>> {
+
+    private final WorldRegionDataManager<W> manager;
+    private final List<int[]> runsX; // Chunk, first and last X of every chunk in the box
+    private final List<int[]> runsZ; // Chunk, first and last Z of every chunk in the box
+    private final int minY;
+    private final int maxY;
+    private int index; // Next column
+    private final int fence; // After the last column
+    private final List<Map.Entry<BlockPosition, Object>> buffer = new ArrayList<>();
+    private int bufferIndex;
+
+    /**
+     * @param manager The world manager
+     * @param box     The box, in the height of the world
+     */
+    BlockSpliterator(WorldRegionDataManager<W> manager, BlockBox box) {
+        this(manager, WorldRegionDataManager.positionRuns(box.minX, box.maxX, manager.getChunkWidth()),
+                WorldRegionDataManager.positionRuns(box.minZ, box.maxZ, manager.getChunkWidth()),
+                box.minY, box.maxY, 0, -1);
+    }
+
+    private BlockSpliterator(WorldRegionDataManager<W> manager, List<int[]> runsX, List<int[]> runsZ,
+                             int minY, int maxY, int index, int fence) {
+        this.manager = manager;
+        this.runsX = runsX;
+        this.runsZ = runsZ;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.index = index;
+        this.fence = fence < 0 ? (minY > maxY ? 0 : runsX.size() * runsZ.size()) : fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<BlockPosition, Object>> action) {
+        while (bufferIndex == buffer.size()) {
+            if (index >= fence)
+                return false;
+            fillBuffer(index++);
+        }
+        action.accept(buffer.get(bufferIndex++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<BlockPosition, Object>> action) {
+        while (true) {
+            while (bufferIndex < buffer.size()) {
+                action.accept(buffer.get(bufferIndex++));
+            }
+            if (index >= fence)
+                return;
+            fillBuffer(index++);
+        }
+    }
+
+    private void fillBuffer(int column) {
+        buffer.clear();
+        bufferIndex = 0;
+        final int regionSize = manager.getManager().getDefinition().regionSize;
+        int[] runX = runsX.get(column / runsZ.size());
+        int[] runZ = runsZ.get(column % runsZ.size());
+        LoadedRegionData<W> region = manager.getRegion(runX[0] / regionSize, runZ[0] / regionSize);
+        if (region == null) // Region not loaded
+            return;
+        region.collectBlocks(runX[0] % regionSize, runZ[0] % regionSize,
+                new BlockBox(runX[1], minY, runZ[1], runX[2], maxY, runZ[2]), buffer);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<BlockPosition, Object>> trySplit() {
+        int mid = (index + fence) >>> 1;
+        if (mid <= index)
+            return null;
+        // The buffered blocks come before the split columns, so they move to the prefix
+        BlockSpliterator<W> prefix = new BlockSpliterator<>(manager, runsX, runsZ, minY, maxY, index, mid);
+        if (bufferIndex < buffer.size()) {
+            prefix.buffer.addAll(buffer.subList(bufferIndex, buffer.size()));
+            buffer.clear();
+            bufferIndex = 0;
+        }
+        index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (long) (fence - index) * manager.getLayerBlockCount() + (buffer.size() - bufferIndex);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+}
@@ -0,0 +1,21 @@
+package top.yertinmc.regioncore;
+
+/**
+ * An action for every block with data found by an iteration.
+ *
+ * @see WorldRegionDataManager#forEach(BlockBox, BlockVisitor)
+ */
+@FunctionalInterface
+public interface BlockVisitor {
+
+    /**
+     * Visit a block with data.
+     *
+     * @param x    The X position of the block
+     * @param y    The Y position of the block
+     * @param z    The Z position of the block
+     * @param data The data of the block, not null
+     */
+    void visit(int x, int y, int z, Object data);
+
+}
@@ -2,7 +2,10 @@ package top.yertinmc.regioncore;
 
 /**
  * A placeholder object to mark an un-initialized chunk in using.
+ *
+ * @deprecated Chunks in using are tracked by the loaded region, this is not stored in region data any more
  */
+@Deprecated
 public final class ChunkUsingPlaceholder {
 
     @SuppressWarnings("InstantiationOfUtilityClass")
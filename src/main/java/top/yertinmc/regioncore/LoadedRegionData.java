@@ -1,9 +1,25 @@
 package top.yertinmc.regioncore;
 
+import org.jetbrains.annotations.Nullable;
 import top.yertinmc.regioncore.io.ChunkData;
+import top.yertinmc.regioncore.io.LayerData;
 import top.yertinmc.regioncore.io.RegionData;
+import top.yertinmc.regioncore.io.RegionFile;
+import top.yertinmc.regioncore.io.RegionFileReader;
+import top.yertinmc.regioncore.io.RegionFileWriter;
+import top.yertinmc.regioncore.metrics.RegionMetrics;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * A loaded region data.
@@ -13,15 +29,34 @@ import java.io.*;
 @SuppressWarnings("unused")
 public class LoadedRegionData<W> {
 
+    /**
+     * Regions with at most 1 / PARTIAL_SAVE_DIVISOR chunks changed are saved in place, others are rewritten.
+     */
+    private static final int PARTIAL_SAVE_DIVISOR = 8;
+
+    /**
+     * Returned by <code>peekBlock</code> for blocks in chunks not decoded.
+     */
+    private static final Object NOT_DECODED = new Object();
+
     private final WorldRegionDataManager<W> manager;
     private final File file;
     private final RegionData data;
     private final W world;
     private final int x;
     private final int z;
-    private boolean dirty = false;
+    private final Object ioLock = new Object();
+    private final StampedLock lock = new StampedLock();
+    private volatile boolean dirty = false;
+    private volatile boolean unloaded = false;
+    private boolean regionFormat; // Guarded by ioLock
+    private long version; // Guarded by lock
+    private long writtenVersion; // Guarded by ioLock
+    private final BitSet usingChunks = new BitSet(); // Guarded by lock
+    private volatile int usingChunkCount; // Written with lock
 
     public LoadedRegionData(WorldRegionDataManager<W> manager, W world, int x, int z) {
+        long start = System.nanoTime();
         this.manager = manager;
         this.file = new File(new File(manager.getBaseDirectory(), "r".concat(Integer.toString(x))),
                 "r".concat(Integer.toString(z)).concat(manager.getManager().getDefinition().fileSuffix));
@@ -29,8 +64,12 @@ public class LoadedRegionData<W> {
         this.x = x;
         this.z = z;
         if (file.exists()) {
-            try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
-                this.data = RegionData.read(manager, is);
+            try {
+                ByteBuffer buffer = RegionFileReader.read(file);
+                manager.getManager().getMetrics().counter(RegionMetrics.BYTES_READ).add(buffer.remaining());
+                regionFormat = RegionFile.isRegionFile(buffer);
+                dirty = !regionFormat; // Migrate legacy files on next save
+                this.data = RegionFileReader.decode(file, buffer, (bytes) -> RegionData.read(manager, bytes));
             } catch (IOException e) {
                 throw new RuntimeException("Error reading exixts region from " + file, e);
             }
@@ -38,79 +77,569 @@ public class LoadedRegionData<W> {
             data = new RegionData(manager);
             dirty = true;
         }
+        manager.getManager().getMetrics().histogram(RegionMetrics.REGION_LOAD).recordSince(start);
     }
 
     /**
      * Save this region data.
      */
     public void write() {
+        if (!dirty)
+            return;
+        long stamp = lock.writeLock();
+        try {
+            writeLocked();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void writeLocked() {
         if (dirty) {
+            if (writeData(data, ++version))
+                dirty = false;
+        }
+    }
+
+    /**
+     * Save this region data and mark this region unloaded. Blocks can not be set to an unloaded region.
+     *
+     * @see LoadedRegionData#setBlock(int, int, int, int, int, Object)
+     */
+    public void unload() {
+        long stamp = lock.writeLock();
+        try {
+            unloaded = true;
+            manager.getManager().getMetrics().counter(RegionMetrics.REGION_UNLOADS).increment();
+            synchronized (ioLock) {
+                // A snapshot not written yet, written now so the region can be read again at once
+                if (writtenVersion < version)
+                    dirty = true;
+            }
+            writeLocked();
+            data.release(); // Block data off heap freed after the snapshots written
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the data of a block in this region.
+     * The data is read with an optimistic lock first, so reading does not block other readers.
+     *
+     * @param chunkX The X position of the chunk in this region
+     * @param chunkZ The Z position of the chunk in this region
+     * @param y      The Y position of the block
+     * @param blockX The X position of the block in the chunk
+     * @param blockZ The Z position of the block in the chunk
+     * @return The data of the block if created and not empty, else null
+     */
+    public Object getBlock(int chunkX, int chunkZ, int y, int blockX, int blockZ) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
             try {
-                if (!file.exists()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    file.getAbsoluteFile().getParentFile().mkdirs();
-                    //noinspection ResultOfMethodCallIgnored
-                    file.createNewFile();
+                Object datum = peekBlock(chunkX, chunkZ, y, blockX, blockZ);
+                if (lock.validate(stamp) && !(datum instanceof byte[]) && datum != NOT_DECODED
+                        && datum != LayerData.OFF_HEAP)
+                    return datum;
+            } catch (RuntimeException ignored) {
+                // A writer changed the storage of the layer while reading, retried under the read lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            Object datum = peekBlock(chunkX, chunkZ, y, blockX, blockZ);
+            if (datum == LayerData.OFF_HEAP) // Decoded without changing the layer
+                return ((ChunkData) data.peekChunkData(chunkX, chunkZ)).getLayer(y).getBlock(blockX, blockZ);
+            if (!(datum instanceof byte[]) && datum != NOT_DECODED)
+                return datum;
+            // Decoding replaces the bytes in the region or the layer, which needs the write lock
+            long writeStamp = lock.tryConvertToWriteLock(stamp);
+            if (writeStamp == 0) {
+                lock.unlockRead(stamp);
+                writeStamp = lock.writeLock();
+            }
+            stamp = writeStamp;
+            return decodeBlock(chunkX, chunkZ, y, blockX, blockZ);
+        } finally {
+            lock.unlock(stamp);
+        }
+    }
+
+    /**
+     * Get the data of many blocks in this region, with the region locked once.
+     * Blocks are read under the read lock, unless any chunk or data needs decoding.
+     *
+     * @param positions The world positions of the blocks, all in this region
+     * @return The data of the blocks in the order of the positions, null for blocks not created or empty
+     * @see LoadedRegionData#getBlock(int, int, int, int, int)
+     */
+    public Object[] getBlocks(List<BlockPosition> positions) {
+        final int regionSize = manager.getManager().getDefinition().regionSize;
+        final int chunkWidth = manager.getChunkWidth();
+        Object[] out = new Object[positions.size()];
+        long stamp = lock.readLock();
+        try {
+            int i = 0;
+            for (; i < out.length; i++) {
+                BlockPosition pos = positions.get(i);
+                int chunkX = pos.x / chunkWidth % regionSize;
+                int chunkZ = pos.z / chunkWidth % regionSize;
+                Object datum = peekBlock(chunkX, chunkZ, pos.y, pos.x % chunkWidth, pos.z % chunkWidth);
+                if (datum instanceof byte[] || datum == NOT_DECODED)
+                    break;
+                if (datum == LayerData.OFF_HEAP) // Decoded without changing the layer
+                    datum = ((ChunkData) data.peekChunkData(chunkX, chunkZ)).getLayer(pos.y)
+                            .getBlock(pos.x % chunkWidth, pos.z % chunkWidth);
+                out[i] = datum;
+            }
+            if (i == out.length)
+                return out;
+            // Decoding replaces the bytes in the region or the layer, which needs the write lock
+            long writeStamp = lock.tryConvertToWriteLock(stamp);
+            if (writeStamp == 0) {
+                lock.unlockRead(stamp);
+                writeStamp = lock.writeLock();
+            }
+            stamp = writeStamp;
+            for (; i < out.length; i++) {
+                BlockPosition pos = positions.get(i);
+                out[i] = decodeBlock(pos.x / chunkWidth % regionSize, pos.z / chunkWidth % regionSize, pos.y,
+                        pos.x % chunkWidth, pos.z % chunkWidth);
+            }
+            return out;
+        } finally {
+            lock.unlock(stamp);
+        }
+    }
+
+    private Object decodeBlock(int chunkX, int chunkZ, int y, int blockX, int blockZ) {
+        Object chunk = data.getChunkData(chunkX, chunkZ); // Decoded if not yet
+        LayerData layer = chunk instanceof ChunkData ? ((ChunkData) chunk).getLayer(y) : null;
+        return layer == null ? null : layer.getBlock(blockX, blockZ);
+    }
+
+    private Object peekBlock(int chunkX, int chunkZ, int y, int blockX, int blockZ) {
+        Object chunk = data.peekChunkData(chunkX, chunkZ);
+        if (chunk instanceof ByteBuffer)
+            return NOT_DECODED;
+        if (!(chunk instanceof ChunkData)) // Chunk not created
+            return null;
+        LayerData layer = ((ChunkData) chunk).getLayer(y);
+        if (layer == null) // Empty layer
+            return null;
+        return layer.peekBlock(blockX, blockZ);
+    }
+
+    /**
+     * Set the data of a block in this region.
+     *
+     * @param chunkX The X position of the chunk in this region
+     * @param chunkZ The Z position of the chunk in this region
+     * @param y      The Y position of the block
+     * @param blockX The X position of the block in the chunk
+     * @param blockZ The Z position of the block in the chunk
+     * @param datum  The data to set
+     * @return FALSE if this region has been unloaded
+     */
+    public boolean setBlock(int chunkX, int chunkZ, int y, int blockX, int blockZ, Object datum) {
+        return setBlock(chunkX, chunkZ, y, blockX, blockZ, datum, null);
+    }
+
+    /**
+     * Set the data of a block in this region, then run an action with this region still locked, so the changes of
+     * a block are journaled in the order they are made.
+     *
+     * @param locked The action run after set, or null
+     * @return FALSE if this region has been unloaded, the action is not run then
+     * @see LoadedRegionData#setBlock(int, int, int, int, int, Object)
+     */
+    boolean setBlock(int chunkX, int chunkZ, int y, int blockX, int blockZ, Object datum, @Nullable Runnable locked) {
+        long stamp = lock.writeLock();
+        try {
+            if (unloaded)
+                return false;
+            if (setBlockLocked(chunkX, chunkZ, y, blockX, blockZ, datum))
+                markDirty();
+            if (locked != null)
+                locked.run();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Set the data of many blocks in this region. The region is locked once for all the blocks,
+     * and marked dirty once if any block changed.
+     * The action may be run again in another region if this region has been unloaded, so it should only set blocks.
+     *
+     * @param action The action setting the blocks with the given setter
+     * @return FALSE if this region has been unloaded, and no block is set
+     */
+    public boolean setBlocks(Consumer<BlockSetter> action) {
+        return setBlocks(action, null);
+    }
+
+    /**
+     * Set the data of many blocks in this region, then run an action with this region still locked, so the changes
+     * of a block are journaled in the order they are made.
+     *
+     * @param locked The action run after set, or null
+     * @return FALSE if this region has been unloaded, the action is not run then
+     * @see LoadedRegionData#setBlocks(Consumer)
+     */
+    boolean setBlocks(Consumer<BlockSetter> action, @Nullable Runnable locked) {
+        long stamp = lock.writeLock();
+        try {
+            if (unloaded)
+                return false;
+            boolean[] changed = new boolean[1];
+            action.accept((chunkX, chunkZ, y, blockX, blockZ, datum) -> {
+                if (setBlockLocked(chunkX, chunkZ, y, blockX, blockZ, datum))
+                    changed[0] = true;
+            });
+            if (changed[0])
+                markDirty();
+            if (locked != null)
+                locked.run();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean setBlockLocked(int chunkX, int chunkZ, int y, int blockX, int blockZ, Object datum) {
+        @Nullable Object chunkData = datum == null ? data.getChunkData(chunkX, chunkZ) :
+                data.getOrInitChunkData(chunkX, chunkZ);
+        if (!(chunkData instanceof ChunkData))
+            return false;
+        ChunkData chunk = (ChunkData) chunkData;
+        @Nullable LayerData layer = datum == null ? chunk.getLayer(y) : chunk.getOrInitLayer(y);
+        if (layer == null)
+            return false;
+        return layer.setBlock(blockX, blockZ, datum, y, data.getIndex(chunkX, chunkZ));
+    }
+
+    /**
+     * Collect the data of the blocks in a box of a chunk in this region, with the region locked once.
+     * Nothing is collected if the chunk is not created, and empty layers are skipped.
+     * Blocks are read under the read lock, unless the chunk or any data needs decoding.
+     *
+     * @param chunkX The X position of the chunk in this region
+     * @param chunkZ The Z position of the chunk in this region
+     * @param box    The box of the blocks by world positions, in the chunk and in the height of the world
+     * @param out    The list to add the blocks with data to
+     * @see WorldRegionDataManager#spliterator(BlockBox)
+     */
+    public void collectBlocks(int chunkX, int chunkZ, BlockBox box, List<Map.Entry<BlockPosition, Object>> out) {
+        long stamp = lock.readLock();
+        try {
+            Object chunk = data.peekChunkData(chunkX, chunkZ);
+            if (chunk == null || (chunk instanceof ChunkData && collectBlocks((ChunkData) chunk, box, out, false)))
+                return;
+            // Decoding replaces the bytes in the region or the layer, which needs the write lock
+            long writeStamp = lock.tryConvertToWriteLock(stamp);
+            if (writeStamp == 0) {
+                lock.unlockRead(stamp);
+                writeStamp = lock.writeLock();
+            }
+            stamp = writeStamp;
+            chunk = data.getChunkData(chunkX, chunkZ);
+            if (chunk instanceof ChunkData)
+                collectBlocks((ChunkData) chunk, box, out, true);
+        } finally {
+            lock.unlock(stamp);
+        }
+    }
+
+    private boolean collectBlocks(ChunkData chunk, BlockBox box, List<Map.Entry<BlockPosition, Object>> out,
+                                  boolean decode) {
+        final int chunkWidth = manager.getChunkWidth();
+        int start = out.size();
+        for (int y = box.minY; y <= box.maxY; y++) {
+            LayerData layer = chunk.getLayer(y);
+            if (layer == null) // Empty layer
+                continue;
+            for (int x = box.minX; x <= box.maxX; x++) {
+                for (int z = box.minZ; z <= box.maxZ; z++) {
+                    Object datum = decode ? layer.getBlock(x % chunkWidth, z % chunkWidth)
+                            : layer.peekBlock(x % chunkWidth, z % chunkWidth);
+                    if (datum == null)
+                        continue;
+                    if (datum == LayerData.OFF_HEAP) // Decoded without changing the layer
+                        datum = layer.getBlock(x % chunkWidth, z % chunkWidth);
+                    if (datum instanceof byte[] && !decode) {
+                        out.subList(start, out.size()).clear();
+                        return false;
+                    }
+                    out.add(new AbstractMap.SimpleImmutableEntry<>(new BlockPosition(x, y, z), datum));
                 }
-                try (DataOutputStream os = new DataOutputStream(new FileOutputStream(file))) {
-                    data.write(os);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a chunk in this region. The chunk is decoded if not yet.
+     *
+     * @param x The X position of the chunk in this region
+     * @param z The Z position of the chunk in this region
+     * @return The chunk data, or null if not created
+     */
+    public @Nullable Object getChunk(int x, int z) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object chunk = data.peekChunkData(x, z);
+            if (lock.validate(stamp) && !(chunk instanceof ByteBuffer))
+                return chunk;
+        }
+        stamp = lock.writeLock();
+        try {
+            return data.getChunkData(x, z);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Mark a chunk in this region in using.
+     *
+     * @param x The X position of the chunk in this region
+     * @param z The Z position of the chunk in this region
+     */
+    public void useChunk(int x, int z) {
+        long stamp = lock.writeLock();
+        try {
+            setChunkUsing(data.getIndex(x, z), true);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Mark a chunk in this region not in using.
+     *
+     * @param x The X position of the chunk in this region
+     * @param z The Z position of the chunk in this region
+     * @return Is this region still using?
+     */
+    public boolean releaseChunk(int x, int z) {
+        long stamp = lock.writeLock();
+        try {
+            setChunkUsing(data.getIndex(x, z), false);
+            return isUsing();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Take a snapshot of this region if changed, and reset the dirty flag.
+     * The snapshot shares the block values with this region, so it is cheap enough to take in the game thread,
+     * but the block values should not be changed in place after set.
+     * The returned task serializes and writes the snapshot, and can be run in any thread.
+     * If writing failed, this region will be marked changed again.
+     *
+     * @return The task to write the snapshot, or null if not changed
+     */
+    public @Nullable Runnable snapshotWrite() {
+        BooleanSupplier task = snapshotWrite(null);
+        return task == null ? null : task::getAsBoolean;
+    }
+
+    /**
+     * Take a snapshot of this region like <code>snapshotWrite()</code>, for writing in parallel with other regions.
+     * The task encodes the snapshot first, then writes it with a permit, so encoding is not limited by the permits.
+     *
+     * @param writePermits The permits of concurrent file writes, or null if not limited
+     * @return The task writing the snapshot and returning FALSE if failed, or null if this region not changed
+     * @see RegionDataManager#flushParallel(long, TimeUnit)
+     */
+    public @Nullable BooleanSupplier snapshotWrite(@Nullable Semaphore writePermits) {
+        return snapshotWrite(writePermits, false);
+    }
+
+    /**
+     * Take a snapshot of this region like <code>snapshotWrite(Semaphore)</code>, also if not changed but a snapshot
+     * taken before is not written yet. All the changes made so far are written when the task finishes then.
+     *
+     * @return The task writing the snapshot and returning FALSE if failed, or null if all the changes are written
+     * @see WorldRegionDataManager#compactJournal()
+     */
+    public @Nullable BooleanSupplier snapshotWriteAll() {
+        return snapshotWrite(null, true);
+    }
+
+    private @Nullable BooleanSupplier snapshotWrite(@Nullable Semaphore writePermits, boolean unwritten) {
+        if (!dirty && !unwritten)
+            return null;
+        RegionData snapshot;
+        long snapshotVersion;
+        long stamp = lock.writeLock();
+        try {
+            if (!dirty) {
+                if (!unwritten)
+                    return null;
+                synchronized (ioLock) {
+                    if (writtenVersion >= version)
+                        return null;
                 }
-                dirty = false;
-            } catch (IOException | AssertionError e) {
+            }
+            snapshot = data.snapshot();
+            snapshotVersion = ++version;
+            dirty = false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return () -> {
+            boolean written;
+            if (writePermits == null) {
+                written = writeData(snapshot, snapshotVersion);
+            } else {
+                try {
+                    snapshot.encodeChunks();
+                } catch (IOException | RuntimeException e) {
+                    // Encoded again while writing, where the error is logged with a backup
+                }
+                writePermits.acquireUninterruptibly();
+                try {
+                    written = writeData(snapshot, snapshotVersion);
+                } finally {
+                    writePermits.release();
+                }
+            }
+            long publishStamp = lock.writeLock();
+            try {
+                if (written) {
+                    snapshot.publishEncoded();
+                } else {
+                    markDirty();
+                }
+                snapshot.release();
+            } finally {
+                lock.unlockWrite(publishStamp);
+            }
+            return written;
+        };
+    }
+
+    private boolean writeData(RegionData data, long dataVersion) {
+        synchronized (ioLock) {
+            if (dataVersion < writtenVersion) // A newer version has been written
+                return true;
+            RegionMetrics metrics = manager.getManager().getMetrics();
+            long start = System.nanoTime();
+            try {
+                final int regionSize = manager.getManager().getDefinition().regionSize;
+                long bytes;
+                if (regionFormat && data.getDirtyChunkCount() <= regionSize * regionSize / PARTIAL_SAVE_DIVISOR) {
+                    // Only a few chunks changed, rewrite them in place
+                    try (RegionFile regionFile = new RegionFile(file, regionSize,
+                            manager.getManager().getDefinition().compression)) {
+                        data.writeChunks(regionFile);
+                        bytes = regionFile.getBytesWritten();
+                    }
+                } else {
+                    bytes = RegionFileWriter.write(file, data::write);
+                    regionFormat = true;
+                }
+                writtenVersion = dataVersion;
+                metrics.histogram(RegionMetrics.REGION_SAVE).recordSince(start);
+                metrics.counter(RegionMetrics.BYTES_WRITTEN).add(bytes);
+                return true;
+            } catch (IOException | AssertionError | RuntimeException e) {
+                metrics.counter(RegionMetrics.SAVE_FAILURES).increment();
+                regionFormat = false; // The file may miss some chunks marked saved, rewrite all on next save
                 manager.getManager().getLogger().error("Error saving loaded region data at {},{},{} to {}", world, x, z, file);
                 System.err.println("Error saving loaded region data at " + world
                         + ", " + x + ", " + z + " to " + file);
                 e.printStackTrace();
                 File backupFile = new File(file + ".backup");
                 try {
-                    assert backupFile.exists() || backupFile.createNewFile();
-                    try (DataOutputStream os = new DataOutputStream(new FileOutputStream(backupFile))) {
-                        data.write(os);
-                    }
-                } catch (IOException e1) {
+                    RegionFileWriter.write(backupFile, data::write);
+                } catch (IOException | RuntimeException e1) {
                     manager.getManager().getLogger().error("Error saving backup region data at {},{},{} to {}", world, x, z, backupFile);
                     System.err.println("Error saving backup region data at " + world
                             + ", " + x + ", " + z + " to " + backupFile);
                     e.printStackTrace();
                 }
+                return false;
             }
         }
     }
 
     /**
-     * Is this region using?
+     * Estimate how many bytes of memory this region takes.
+     *
+     * @return The bytes
+     * @see RegionData#estimateSize()
+     */
+    public long estimateSize() {
+        long stamp = lock.readLock();
+        try {
+            return data.estimateSize();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Is this region using? Chunks in using are counted, so this does not scan the chunks.
      *
      * @return TRUE if using
      */
     public boolean isUsing() {
-        for (Object chunk : getData().getChunks()) {
-            if (chunk instanceof ChunkUsingPlaceholder) {
-                return true;
-            } else if ((chunk instanceof ChunkData) && ((ChunkData) chunk).isUsing()) {
-                return true;
-            }
+        return usingChunkCount != 0;
+    }
+
+    /**
+     * Is a chunk in this region in using?
+     *
+     * @param x The X position of the chunk in this region
+     * @param z The Z position of the chunk in this region
+     * @return TRUE if using
+     */
+    public boolean isChunkUsing(int x, int z) {
+        long stamp = lock.readLock();
+        try {
+            return usingChunks.get(data.getIndex(x, z));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void setChunkUsing(int index, boolean using) {
+        if (usingChunks.get(index) != using) {
+            usingChunks.set(index, using);
+            usingChunkCount += using ? 1 : -1;
         }
-        return false;
     }
 
     /**
-     * Mark a chunk in using with setting placeholder.
+     * Mark a chunk in using. Should be called with this region locked.
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
+     * @deprecated Chunks in using are not marked in the region data any more, use
+     * {@link LoadedRegionData#useChunk(int, int)}
      */
+    @Deprecated
     public void setChunkUsingPlaceholder(int x, int z) {
-        data.getChunks()[data.getIndex(x, z)] = ChunkUsingPlaceholder.INSTANCE;
+        setChunkUsing(data.getIndex(x, z), true);
     }
 
     /**
-     * Mark a chunk not in using with setting null.
+     * Mark a chunk not in using. Should be called with this region locked.
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
+     * @deprecated Chunks in using are not marked in the region data any more, use
+     * {@link LoadedRegionData#releaseChunk(int, int)}
      */
+    @Deprecated
     public void resetChunkUsingPlaceholder(int x, int z) {
-        data.getChunks()[data.getIndex(x, z)] = null;
+        setChunkUsing(data.getIndex(x, z), false);
     }
 
     /**
@@ -133,6 +662,24 @@ public class LoadedRegionData<W> {
         dirty = false;
     }
 
+    /**
+     * Get the lock of this region. The lock is not reentrant.
+     *
+     * @return The lock
+     */
+    public StampedLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Has this region been unloaded?
+     *
+     * @return TRUE if unloaded
+     */
+    public boolean isUnloaded() {
+        return unloaded;
+    }
+
     /**
      * Get the world region data manager.
      *
@@ -198,4 +745,26 @@ public class LoadedRegionData<W> {
         return dirty;
     }
 
+    /**
+     * Sets the data of a block in a region, given to the action of <code>setBlocks</code>.
+     *
+     * @see LoadedRegionData#setBlocks(Consumer)
+     */
+    @FunctionalInterface
+    public interface BlockSetter {
+
+        /**
+         * Set the data of a block in the region.
+         *
+         * @param chunkX The X position of the chunk in the region
+         * @param chunkZ The Z position of the chunk in the region
+         * @param y      The Y position of the block
+         * @param blockX The X position of the block in the chunk
+         * @param blockZ The Z position of the block in the chunk
+         * @param datum  The data to set
+         */
+        void set(int chunkX, int chunkZ, int y, int blockX, int blockZ, Object datum);
+
+    }
+
 }
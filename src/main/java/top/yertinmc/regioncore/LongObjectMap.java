@@ -0,0 +1,262 @@
+package top.yertinmc.regioncore;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An open addressing hash map with primitive <code>long</code> keys, without boxing keys.
+ * Slots are probed linearly, and removing shifts the following entries back, so no tombstones are left.
+ * Null values are not supported. Not thread safe, but a reader racing with a writer never throws or loops forever,
+ * it just may get a wrong result, so this map can be read under an optimistic lock.
+ * The arrays are replaced as a whole when resized, so a reader always sees arrays of the same size.
+ *
+ * @param <V> The type of values
+ */
+public class LongObjectMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5F;
+
+    private Table table;
+    private int size;
+
+    public LongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    /**
+     * Spread the bits of a key for the slot index.
+     *
+     * @param key The key
+     * @return The hash
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key The key
+     * @return The value, or null if not exists
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        Table table = this.table;
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = table.mask;
+        // Bounded, so a racing reader seeing no empty slot still stops
+        for (int i = hash(key) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Object value = values[i];
+            if (value == null)
+                return null;
+            if (keys[i] == key)
+                return (V) value;
+        }
+        return null;
+    }
+
+    /**
+     * Is a key exists?
+     *
+     * @param key The key
+     * @return TRUE if exists
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Put a value.
+     *
+     * @param key   The key
+     * @param value The value, not null
+     * @return The old value, or null if not exists
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("Null values are not supported");
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = table.mask;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object old = values[i];
+            if (old == null) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > table.threshold)
+                    rehash(keys.length << 1);
+                return null;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) old;
+            }
+        }
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key The key
+     * @return The removed value, or null if not exists
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = table.mask;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object old = values[i];
+            if (old == null)
+                return null;
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return (V) old;
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear() {
+        Arrays.fill(table.values, null);
+        size = 0;
+    }
+
+    /**
+     * How many entries in this map?
+     *
+     * @return The count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Is this map empty?
+     *
+     * @return TRUE if empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Visit all the values.
+     *
+     * @param action The action for each value
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        for (Object value : table.values) {
+            if (value != null)
+                action.accept((V) value);
+        }
+    }
+
+    /**
+     * Visit all the entries.
+     *
+     * @param action The action for each entry
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> action) {
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null)
+                action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private void shiftBack(int slot) {
+        // Move the following entries of the probe sequence back to fill the removed slot
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = table.mask;
+        int last = slot;
+        for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            boolean movable = last <= i ? (home <= last || home > i) : (home <= last && home > i);
+            if (movable) {
+                keys[last] = keys[i];
+                values[last] = values[i];
+                last = i;
+            }
+        }
+        values[last] = null;
+    }
+
+    private void rehash(int capacity) {
+        Table old = table;
+        Table table = new Table(capacity);
+        for (int i = 0; i < old.values.length; i++) {
+            Object value = old.values[i];
+            if (value == null)
+                continue;
+            int slot = hash(old.keys[i]) & table.mask;
+            while (table.values[slot] != null)
+                slot = (slot + 1) & table.mask;
+            table.keys[slot] = old.keys[i];
+            table.values[slot] = value;
+        }
+        this.table = table; // Published after filled
+    }
+
+    /**
+     * The arrays of the map.
+     */
+    private static final class Table {
+
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+        private final int threshold;
+
+        private Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+            threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+    }
+
+    /**
+     * An action for an entry.
+     *
+     * @param <V> The type of values
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        /**
+         * Accept an entry.
+         *
+         * @param key   The key
+         * @param value The value
+         */
+        void accept(long key, V value);
+
+    }
+
+}
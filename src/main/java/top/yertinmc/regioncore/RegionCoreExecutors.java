@@ -0,0 +1,109 @@
+package top.yertinmc.regioncore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared executors used by region data managers when no executor is configured.
+ */
+public final class RegionCoreExecutors {
+
+    private RegionCoreExecutors() {
+    }
+
+    /**
+     * Get the default executor for loading region files.
+     * The threads of this executor are daemon threads, so it never blocks the JVM from exiting.
+     *
+     * @return The executor
+     */
+    public static ExecutorService defaultIoExecutor() {
+        return IoHolder.EXECUTOR;
+    }
+
+    /**
+     * Get the default executor for writing region snapshots in background.
+     * This executor runs tasks one by one in a daemon thread.
+     *
+     * @return The executor
+     */
+    public static ExecutorService defaultSaveExecutor() {
+        return SaveHolder.EXECUTOR;
+    }
+
+    /**
+     * Get the default pool for encoding regions in parallel flushes.
+     * The pool has a thread for every processor, and its threads are daemon threads.
+     *
+     * @return The pool
+     */
+    public static ForkJoinPool defaultParallelSavePool() {
+        return ParallelSaveHolder.POOL;
+    }
+
+    /**
+     * Get the default scheduler for committing and compacting mutation journals.
+     * This scheduler runs tasks one by one in a daemon thread.
+     *
+     * @return The scheduler
+     */
+    public static ScheduledExecutorService defaultJournalScheduler() {
+        return JournalHolder.SCHEDULER;
+    }
+
+    /**
+     * Create a thread factory making daemon threads with given name prefix.
+     *
+     * @param prefix The prefix of thread names
+     * @return The thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, prefix.concat(Integer.toString(counter.incrementAndGet())));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class IoHolder {
+
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                daemonThreadFactory("RegionCore::IO::"));
+
+    }
+
+    private static final class ParallelSaveHolder {
+
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                (pool) -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("RegionCore::ParallelSaver::".concat(Integer.toString(COUNTER.incrementAndGet())));
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+
+    }
+
+    private static final class JournalHolder {
+
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                daemonThreadFactory("RegionCore::Journal::"));
+
+    }
+
+    private static final class SaveHolder {
+
+        private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+                daemonThreadFactory("RegionCore::Saver::"));
+
+    }
+
+}
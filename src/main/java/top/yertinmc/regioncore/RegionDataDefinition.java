@@ -1,7 +1,13 @@
 package top.yertinmc.regioncore;
 
 import org.jetbrains.annotations.NotNull;
+import top.yertinmc.regioncore.io.BlockCodec;
+import top.yertinmc.regioncore.io.ChunkCompression;
+import top.yertinmc.regioncore.io.EncodeBuffer;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -46,12 +52,16 @@ public class RegionDataDefinition<W> {
     public final @NotNull BiFunction<W, W, Boolean> worldEquals;
 
     /**
-     * The serializer for a block data.
+     * The serializer for a block data. Adapted from <code>codec</code> if set in the builder.
+     *
+     * @see RegionDataDefinition#codec
      */
     public final @NotNull Function<Object, byte[]> dataSerializer;
 
     /**
-     * The deserializer for a block data.
+     * The deserializer for a block data. Adapted from <code>codec</code> if set in the builder.
+     *
+     * @see RegionDataDefinition#codec
      */
     public final @NotNull Function<byte[], Object> dataDeserializer;
 
@@ -65,11 +75,81 @@ public class RegionDataDefinition<W> {
      */
     public final @NotNull String fileSuffix;
 
+    /**
+     * How many distinct values a layer keeps in a palette at most, before changing to a flat array.
+     * 0 to disable palettes, which is the default.
+     * Blocks with equal values share one instance in a palette, also after deserialized, so changing a value got in
+     * place changes all the equal blocks of the layer. Only enable palettes for immutable values.
+     */
+    public final int maxPaletteSize;
+
+    /**
+     * The compression of the chunks in region files written.
+     * Files with any registered compression can be read.
+     */
+    public final @NotNull ChunkCompression compression;
+
+    /**
+     * The codec of block data, used for saving and loading.
+     * Adapted from <code>dataSerializer</code> and <code>dataDeserializer</code> if not set in the builder.
+     */
+    public final @NotNull BlockCodec<Object> codec;
+
+    /**
+     * Whether block data is kept encoded off heap, in direct buffers of every region.
+     * The heap then does not grow with the blocks, but data is decoded every time got, and a value got is a new
+     * object each time. Values should never be changed in place then.
+     *
+     * @see top.yertinmc.regioncore.io.PayloadArena
+     */
+    public final boolean offHeap;
+
     public RegionDataDefinition(int regionSize, int chunkWidth, int defaultWorldHeight,
                                 @NotNull Map<W, Integer> worldHeights, @NotNull Function<W, String> worldNameProvider,
                                 @NotNull BiFunction<W, W, Boolean> worldEquals, @NotNull Function<Object, byte[]> dataSerializer,
                                 @NotNull Function<byte[], Object> dataDeserializer, @NotNull Function<Object, Boolean> dataIsEmpty,
                                 @NotNull String fileSuffix) {
+        this(regionSize, chunkWidth, defaultWorldHeight, worldHeights, worldNameProvider, worldEquals, dataSerializer,
+                dataDeserializer, dataIsEmpty, fileSuffix, Builder.DEFAULT_MAX_PALETTE_SIZE);
+    }
+
+    public RegionDataDefinition(int regionSize, int chunkWidth, int defaultWorldHeight,
+                                @NotNull Map<W, Integer> worldHeights, @NotNull Function<W, String> worldNameProvider,
+                                @NotNull BiFunction<W, W, Boolean> worldEquals, @NotNull Function<Object, byte[]> dataSerializer,
+                                @NotNull Function<byte[], Object> dataDeserializer, @NotNull Function<Object, Boolean> dataIsEmpty,
+                                @NotNull String fileSuffix, int maxPaletteSize) {
+        this(regionSize, chunkWidth, defaultWorldHeight, worldHeights, worldNameProvider, worldEquals, dataSerializer,
+                dataDeserializer, dataIsEmpty, fileSuffix, maxPaletteSize, ChunkCompression.NONE);
+    }
+
+    public RegionDataDefinition(int regionSize, int chunkWidth, int defaultWorldHeight,
+                                @NotNull Map<W, Integer> worldHeights, @NotNull Function<W, String> worldNameProvider,
+                                @NotNull BiFunction<W, W, Boolean> worldEquals, @NotNull Function<Object, byte[]> dataSerializer,
+                                @NotNull Function<byte[], Object> dataDeserializer, @NotNull Function<Object, Boolean> dataIsEmpty,
+                                @NotNull String fileSuffix, int maxPaletteSize, @NotNull ChunkCompression compression) {
+        this(regionSize, chunkWidth, defaultWorldHeight, worldHeights, worldNameProvider, worldEquals, dataSerializer,
+                dataDeserializer, dataIsEmpty, fileSuffix, maxPaletteSize, compression,
+                BlockCodec.of(dataSerializer, dataDeserializer));
+    }
+
+    public RegionDataDefinition(int regionSize, int chunkWidth, int defaultWorldHeight,
+                                @NotNull Map<W, Integer> worldHeights, @NotNull Function<W, String> worldNameProvider,
+                                @NotNull BiFunction<W, W, Boolean> worldEquals, @NotNull Function<Object, byte[]> dataSerializer,
+                                @NotNull Function<byte[], Object> dataDeserializer, @NotNull Function<Object, Boolean> dataIsEmpty,
+                                @NotNull String fileSuffix, int maxPaletteSize, @NotNull ChunkCompression compression,
+                                @NotNull BlockCodec<Object> codec) {
+        this(regionSize, chunkWidth, defaultWorldHeight, worldHeights, worldNameProvider, worldEquals, dataSerializer,
+                dataDeserializer, dataIsEmpty, fileSuffix, maxPaletteSize, compression, codec, false);
+    }
+
+    public RegionDataDefinition(int regionSize, int chunkWidth, int defaultWorldHeight,
+                                @NotNull Map<W, Integer> worldHeights, @NotNull Function<W, String> worldNameProvider,
+                                @NotNull BiFunction<W, W, Boolean> worldEquals, @NotNull Function<Object, byte[]> dataSerializer,
+                                @NotNull Function<byte[], Object> dataDeserializer, @NotNull Function<Object, Boolean> dataIsEmpty,
+                                @NotNull String fileSuffix, int maxPaletteSize, @NotNull ChunkCompression compression,
+                                @NotNull BlockCodec<Object> codec, boolean offHeap) {
+        if (maxPaletteSize < 0 || maxPaletteSize > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Illegal max palette size " + maxPaletteSize);
         this.regionSize = regionSize;
         this.chunkWidth = chunkWidth;
         this.defaultWorldHeight = defaultWorldHeight;
@@ -80,6 +160,11 @@ public class RegionDataDefinition<W> {
         this.dataDeserializer = dataDeserializer;
         this.dataIsEmpty = dataIsEmpty;
         this.fileSuffix = fileSuffix;
+        this.maxPaletteSize = maxPaletteSize;
+        this.compression = compression;
+        this.codec = codec;
+        this.offHeap = offHeap;
+        ChunkCompression.register(compression);
     }
 
     /**
@@ -101,6 +186,8 @@ public class RegionDataDefinition<W> {
     @SuppressWarnings("unused")
     public static class Builder<W> {
 
+        private static final int DEFAULT_MAX_PALETTE_SIZE = 0;
+
         private int regionSize = 32;
         private int chunkWidth = 16;
         private int defaultWorldHeight = 256;
@@ -111,10 +198,15 @@ public class RegionDataDefinition<W> {
         private Function<byte[], Object> dataDeserializer = (data) -> data;
         private Function<Object, Boolean> dataIsEmpty = (data) -> false;
         private String fileSuffix = ".dat";
+        private int maxPaletteSize = DEFAULT_MAX_PALETTE_SIZE;
+        private ChunkCompression compression = ChunkCompression.NONE;
+        private BlockCodec<Object> codec;
+        private boolean offHeap;
 
         public RegionDataDefinition<W> build() {
             return new RegionDataDefinition<>(regionSize, chunkWidth, defaultWorldHeight, worldHeights,
-                    worldNameProvider, worldEquals, dataSerializer, dataDeserializer, dataIsEmpty, fileSuffix);
+                    worldNameProvider, worldEquals, dataSerializer, dataDeserializer, dataIsEmpty, fileSuffix, maxPaletteSize, compression,
+                    codec != null ? codec : BlockCodec.of(dataSerializer, dataDeserializer), offHeap);
         }
 
         public Builder<W> regionSize(int regionSize) {
@@ -154,11 +246,38 @@ public class RegionDataDefinition<W> {
 
         public Builder<W> dataSerializer(Function<Object, byte[]> dataSerializer) {
             this.dataSerializer = dataSerializer;
+            this.codec = null;
             return this;
         }
 
         public Builder<W> dataDeserializer(Function<byte[], Object> dataDeserializer) {
             this.dataDeserializer = dataDeserializer;
+            this.codec = null;
+            return this;
+        }
+
+        /**
+         * Set the codec of block data, replacing the serializer and the deserializer.
+         * Values are given to the codec with an unchecked cast, so all the values set must be of the type.
+         *
+         * @param codec The codec
+         * @param <T>   The type of block data
+         * @return This builder
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Builder<W> codec(BlockCodec<T> codec) {
+            BlockCodec<Object> objectCodec = (BlockCodec<Object>) codec;
+            this.codec = objectCodec;
+            this.dataSerializer = (data) -> {
+                EncodeBuffer buffer = new EncodeBuffer(64);
+                try {
+                    objectCodec.encode(data, buffer.dataOutput());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return buffer.toByteArray();
+            };
+            this.dataDeserializer = (data) -> objectCodec.decode(ByteBuffer.wrap(data));
             return this;
         }
 
@@ -172,6 +291,36 @@ public class RegionDataDefinition<W> {
             return this;
         }
 
+        /**
+         * Keep layers with few distinct values in a palette. Values of blocks are shared then, see
+         * <code>RegionDataDefinition#maxPaletteSize</code>.
+         *
+         * @param maxPaletteSize How many distinct values a palette holds at most, 0 to disable palettes
+         * @return This builder
+         * @see RegionDataDefinition#maxPaletteSize
+         */
+        public Builder<W> maxPaletteSize(int maxPaletteSize) {
+            this.maxPaletteSize = maxPaletteSize;
+            return this;
+        }
+
+        public Builder<W> compression(ChunkCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Keep block data encoded off heap, in direct buffers of every region.
+         *
+         * @param offHeap Whether to keep block data off heap
+         * @return This builder
+         * @see RegionDataDefinition#offHeap
+         */
+        public Builder<W> offHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
     }
 
 }
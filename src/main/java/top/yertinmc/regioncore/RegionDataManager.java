@@ -1,10 +1,27 @@
 package top.yertinmc.regioncore;
 
 import org.slf4j.Logger;
+import top.yertinmc.regioncore.io.PayloadArena;
+import top.yertinmc.regioncore.metrics.RegionMetrics;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 /**
  * A region data type manager.
@@ -17,7 +34,21 @@ public class RegionDataManager<W> {
     private final RegionDataDefinition<W> definition;
     private final Logger logger;
     private final File baseDirectory;
-    private final Map<W, WorldRegionDataManager<W>> worldManagers = new HashMap<>();
+    private final Map<W, WorldRegionDataManager<W>> worldManagers = new ConcurrentHashMap<>();
+    private final Object saveLock = new Object();
+    private volatile WorldRegionDataManager<W> lastManager; // The most recently used, checked before the map
+    private volatile Executor ioExecutor = RegionCoreExecutors.defaultIoExecutor();
+    private volatile Executor saveExecutor = RegionCoreExecutors.defaultSaveExecutor();
+    private volatile ForkJoinPool parallelSavePool = RegionCoreExecutors.defaultParallelSavePool();
+    private volatile int maxConcurrentWrites = 4;
+    private CompletableFuture<Void> pendingSave = CompletableFuture.completedFuture(null); // Guarded by saveLock
+    private volatile int maxIdleRegions = 0;
+    private volatile long maxIdleRegionBytes = Long.MAX_VALUE;
+    private volatile boolean journalEnabled = false;
+    private volatile long journalCommitInterval = 50;
+    private volatile long journalCompactBytes = 16 * 1024 * 1024;
+    private volatile ScheduledExecutorService journalScheduler = RegionCoreExecutors.defaultJournalScheduler();
+    private final RegionMetrics metrics = new RegionMetrics();
 
     public RegionDataManager(RegionDataDefinition<W> definition, Logger logger, File baseDirectory) {
         this.definition = definition;
@@ -26,23 +57,48 @@ public class RegionDataManager<W> {
         if (!baseDirectory.exists())
             //noinspection ResultOfMethodCallIgnored
             baseDirectory.mkdirs();
+        metrics.gauge("regions.loaded", () -> sumOfWorlds(WorldRegionDataManager::getLoadedRegionCount));
+        metrics.gauge("regions.dirty", () -> sumOfWorlds(WorldRegionDataManager::getDirtyRegionCount));
+        metrics.gauge("regions.idle", () -> sumOfWorlds(WorldRegionDataManager::getIdleRegionCount));
+        metrics.gauge("regions.idle.bytes", () -> sumOfWorlds(WorldRegionDataManager::getIdleRegionBytes));
+        metrics.gauge("regions.loading", () -> sumOfWorlds(WorldRegionDataManager::getLoadingRegionCount));
+        metrics.gauge("worlds", worldManagers::size);
+        metrics.gauge("offheap.bytes", PayloadArena::getReservedBytes);
+    }
+
+    private long sumOfWorlds(ToLongFunction<WorldRegionDataManager<W>> function) {
+        long sum = 0;
+        for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+            sum += function.applyAsLong(manager);
+        }
+        return sum;
     }
 
     /**
      * Get a world region data manager for the world.
+     * Lookup is lock-free, and the most recently used world is checked first without hashing.
+     * A new manager is published first, then the thread publishing it replays the journal, and other threads getting
+     * the same world wait for the replay.
      *
      * @param world The world
      * @return The manager
      */
     public WorldRegionDataManager<W> getManager(W world) {
-        if (!worldManagers.containsKey(world)) {
-            synchronized (this) {
-                if (!worldManagers.containsKey(world)) {
-                    worldManagers.put(world, new WorldRegionDataManager<>(this, world));
-                }
+        WorldRegionDataManager<W> manager = lastManager;
+        if (manager != null && manager.getWorld() == world)
+            return manager;
+        manager = worldManagers.get(world);
+        if (manager == null) {
+            WorldRegionDataManager<W> created = new WorldRegionDataManager<>(this, world);
+            manager = worldManagers.putIfAbsent(world, created);
+            if (manager == null) {
+                manager = created;
+                manager.open();
             }
         }
-        return worldManagers.get(world);
+        manager.awaitOpened();
+        lastManager = manager;
+        return manager;
     }
 
     /**
@@ -56,6 +112,19 @@ public class RegionDataManager<W> {
         getManager(world).loadChunk(x, z);
     }
 
+    /**
+     * Load a chunk in background. The region file will be read with the I/O executor.
+     *
+     * @param world The world
+     * @param x     The X position of the chunk
+     * @param z     The Z position of the chunk
+     * @return The future completed with the region of the chunk
+     * @see RegionDataManager#setIoExecutor(Executor)
+     */
+    public CompletableFuture<LoadedRegionData<W>> loadChunkAsync(W world, int x, int z) {
+        return getManager(world).loadChunkAsync(x, z);
+    }
+
     /**
      * Unload a chunk.
      *
@@ -69,13 +138,185 @@ public class RegionDataManager<W> {
 
     /**
      * Write all loaded and modified regions.
+     * Looking up world managers is not blocked while writing.
      */
     public void write() {
-        synchronized (this) {
+        for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+            manager.write();
+        }
+    }
+
+    /**
+     * Write all loaded and modified regions in background.
+     * Snapshots of the modified regions are taken in the calling thread, then serialized and written with the save
+     * executor. Block values should not be changed in place after set, or a snapshot may be changed while saving.
+     *
+     * @return The future completed after all the snapshots written
+     * @see RegionDataManager#setSaveExecutor(Executor)
+     * @see RegionDataManager#flush()
+     */
+    public CompletableFuture<Void> writeAsync() {
+        List<Runnable> tasks = new ArrayList<>();
+        synchronized (saveLock) {
+            for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+                tasks.addAll(manager.snapshotWrites());
+            }
+            if (tasks.isEmpty())
+                return pendingSave;
+            return submitSaveLocked(() -> {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Run a save task with the save executor. Flushing waits for the task.
+     * Should not be called with a world manager locked.
+     *
+     * @param task The task
+     * @see RegionDataManager#flush()
+     */
+    void submitSave(Runnable task) {
+        synchronized (saveLock) {
+            submitSaveLocked(task);
+        }
+    }
+
+    private CompletableFuture<Void> submitSaveLocked(Runnable task) {
+        CompletableFuture<Void> save = CompletableFuture.runAsync(task, saveExecutor);
+        pendingSave = pendingSave.isDone() ? save : CompletableFuture.allOf(pendingSave, save);
+        return save;
+    }
+
+    /**
+     * Wait for all the background saves, then write all loaded and modified regions in the calling thread.
+     * Call this before shutting down.
+     *
+     * @see RegionDataManager#writeAsync()
+     */
+    public void flush() {
+        CompletableFuture<Void> pending;
+        synchronized (saveLock) {
+            pending = pendingSave;
+        }
+        pending.handle((result, error) -> null).join();
+        write();
+        compactJournals().join();
+    }
+
+    /**
+     * Write and sync the records appended to the mutation journals of all the worlds.
+     * Changes made before are durable after this returns.
+     *
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public void commitJournals() {
+        for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+            manager.commitJournal();
+        }
+    }
+
+    /**
+     * Write the regions changed by the records in the mutation journals of all the worlds in background, then
+     * delete the records.
+     *
+     * @return The future completed with FALSE if any region failed to write, the records are kept then
+     * @see WorldRegionDataManager#compactJournal()
+     */
+    public CompletableFuture<Boolean> compactJournals() {
+        CompletableFuture<Boolean> result = CompletableFuture.completedFuture(true);
+        for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+            result = result.thenCombine(manager.compactJournal(), Boolean::logicalAnd);
+        }
+        return result;
+    }
+
+    /**
+     * Commit and close the mutation journals of all the worlds. Call this after flushing when shutting down.
+     * Changes made after closed are not journaled.
+     */
+    public void closeJournals() {
+        for (WorldRegionDataManager<W> manager : worldManagers.values()) {
+            manager.closeJournal();
+        }
+    }
+
+    /**
+     * Write all loaded and modified regions in parallel, and wait for them and all the background saves.
+     * Regions are encoded concurrently with the parallel save pool, and written with a limited count of concurrent
+     * file writes. Call this before shutting down instead of <code>flush()</code> if there are many regions.
+     *
+     * @return The report
+     * @see RegionDataManager#flushParallel(long, TimeUnit)
+     */
+    public SaveReport<W> flushParallel() {
+        return flushParallel(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Write all loaded and modified regions in parallel, and wait for them and all the background saves until the
+     * deadline. Regions are encoded concurrently with the parallel save pool, and written with a limited count of
+     * concurrent file writes. Writes not finished before the deadline go on in background, and a later flush waits
+     * for them.
+     *
+     * @param timeout How long to wait at most
+     * @param unit    The unit of the timeout
+     * @return The report, with the regions not finished in time
+     * @see RegionDataManager#setParallelSavePool(ForkJoinPool)
+     * @see RegionDataManager#setMaxConcurrentWrites(int)
+     */
+    public SaveReport<W> flushParallel(long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        Semaphore writePermits = new Semaphore(maxConcurrentWrites);
+        ForkJoinPool pool = parallelSavePool;
+        Map<LoadedRegionData<W>, CompletableFuture<Boolean>> saves = new LinkedHashMap<>();
+        CompletableFuture<Void> pending;
+        synchronized (saveLock) {
+            pending = pendingSave;
             for (WorldRegionDataManager<W> manager : worldManagers.values()) {
-                manager.write();
+                manager.snapshotWrites(writePermits).forEach((region, task) ->
+                        saves.put(region, CompletableFuture.supplyAsync(task::getAsBoolean, pool)));
+            }
+            if (!saves.isEmpty()) {
+                CompletableFuture<Void> all = CompletableFuture.allOf(saves.values().toArray(new CompletableFuture<?>[0]));
+                pendingSave = pendingSave.isDone() ? all : CompletableFuture.allOf(pendingSave, all);
+            }
+        }
+        boolean pendingFinished = await(pending, timeoutNanos - (System.nanoTime() - start));
+        int written = 0;
+        List<LoadedRegionData<W>> failed = new ArrayList<>();
+        List<LoadedRegionData<W>> unfinished = new ArrayList<>();
+        for (Map.Entry<LoadedRegionData<W>, CompletableFuture<Boolean>> entry : saves.entrySet()) {
+            CompletableFuture<Boolean> save = entry.getValue();
+            if (!await(save, timeoutNanos - (System.nanoTime() - start))) {
+                unfinished.add(entry.getKey());
+            } else if (save.isCompletedExceptionally() || !save.join()) {
+                failed.add(entry.getKey());
+            } else {
+                written++;
             }
         }
+        SaveReport<W> report = new SaveReport<>(written, failed, unfinished, pendingFinished);
+        if (report.isComplete())
+            await(compactJournals(), timeoutNanos - (System.nanoTime() - start));
+        return report;
+    }
+
+    private static boolean await(CompletableFuture<?> future, long timeoutNanos) {
+        if (future.isDone())
+            return true;
+        try {
+            future.handle((result, error) -> null).get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /**
@@ -116,6 +357,79 @@ public class RegionDataManager<W> {
         set(world, x, y, z, null);
     }
 
+    /**
+     * Set the data of many blocks, every region with the blocks is locked once.
+     *
+     * @param world  The world
+     * @param blocks The data to set of the blocks, null to remove
+     * @see WorldRegionDataManager#setAll(Map)
+     */
+    public void setAll(W world, Map<BlockPosition, ?> blocks) {
+        getManager(world).setAll(blocks);
+    }
+
+    /**
+     * Set the data of all the blocks in a box, every region in the box is locked once.
+     *
+     * @param world The world
+     * @param box   The box
+     * @param data  The data to set, null to remove
+     * @see WorldRegionDataManager#fill(BlockBox, Object)
+     */
+    public void fill(W world, BlockBox box, Object data) {
+        getManager(world).fill(box, data);
+    }
+
+    /**
+     * Remove the data of all the blocks in a box.
+     *
+     * @param world The world
+     * @param box   The box
+     * @see WorldRegionDataManager#clear(BlockBox)
+     */
+    public void clear(W world, BlockBox box) {
+        getManager(world).clear(box);
+    }
+
+    /**
+     * Stream the blocks with data in a box. Make it parallel for scanning big boxes.
+     *
+     * @param world The world
+     * @param box   The box
+     * @return The stream of positions and data of blocks
+     * @see WorldRegionDataManager#spliterator(BlockBox)
+     */
+    public Stream<Map.Entry<BlockPosition, Object>> stream(W world, BlockBox box) {
+        return getManager(world).stream(box);
+    }
+
+    /**
+     * Visit the blocks with data in a box, in the calling thread.
+     *
+     * @param world   The world
+     * @param box     The box
+     * @param visitor The action for every block
+     * @see WorldRegionDataManager#spliterator(BlockBox)
+     */
+    public void forEach(W world, BlockBox box, BlockVisitor visitor) {
+        getManager(world).forEach(box, visitor);
+    }
+
+    /**
+     * Move the data of many blocks by an offset.
+     * The data of the origin blocks will be removed, unless moved into by another block.
+     *
+     * @param world     The world
+     * @param positions The positions of the origin blocks
+     * @param dx        The X offset
+     * @param dy        The Y offset
+     * @param dz        The Z offset
+     * @see WorldRegionDataManager#moveAll(Collection, int, int, int)
+     */
+    public void moveAll(W world, Collection<BlockPosition> positions, int dx, int dy, int dz) {
+        getManager(world).moveAll(positions, dx, dy, dz);
+    }
+
     /**
      * Move the data of a block to another block.
      * The data of the origin block will be remove.
@@ -162,10 +476,204 @@ public class RegionDataManager<W> {
     /**
      * Get all the world manager loaded.
      *
-     * @return The managers
+     * @return The managers, a read-only view
      */
     public Map<W, WorldRegionDataManager<W>> getAllLoadedWorldManagers() {
-        return worldManagers;
+        return Collections.unmodifiableMap(worldManagers);
+    }
+
+    /**
+     * Get the executor to read region files in background.
+     *
+     * @return The executor
+     */
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Set the executor to read region files in background.
+     *
+     * @param ioExecutor The executor
+     * @see RegionCoreExecutors#defaultIoExecutor()
+     */
+    public void setIoExecutor(Executor ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Get the executor to write region snapshots in background.
+     *
+     * @return The executor
+     */
+    public Executor getSaveExecutor() {
+        return saveExecutor;
+    }
+
+    /**
+     * Set the executor to write region snapshots in background.
+     *
+     * @param saveExecutor The executor
+     * @see RegionCoreExecutors#defaultSaveExecutor()
+     */
+    public void setSaveExecutor(Executor saveExecutor) {
+        this.saveExecutor = saveExecutor;
+    }
+
+    /**
+     * Get the pool to encode regions in parallel flushes.
+     *
+     * @return The pool
+     */
+    public ForkJoinPool getParallelSavePool() {
+        return parallelSavePool;
+    }
+
+    /**
+     * Set the pool to encode regions in parallel flushes.
+     *
+     * @param parallelSavePool The pool
+     * @see RegionCoreExecutors#defaultParallelSavePool()
+     */
+    public void setParallelSavePool(ForkJoinPool parallelSavePool) {
+        this.parallelSavePool = parallelSavePool;
+    }
+
+    /**
+     * Get how many region files are written at the same time in parallel flushes.
+     *
+     * @return The count
+     */
+    public int getMaxConcurrentWrites() {
+        return maxConcurrentWrites;
+    }
+
+    /**
+     * Set how many region files are written at the same time in parallel flushes.
+     * Encoding is not limited, only the writing of files.
+     *
+     * @param maxConcurrentWrites The count, at least 1
+     */
+    public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+        if (maxConcurrentWrites < 1)
+            throw new IllegalArgumentException("Illegal max concurrent writes " + maxConcurrentWrites);
+        this.maxConcurrentWrites = maxConcurrentWrites;
+    }
+
+    /**
+     * Get how many regions with no chunks in using are kept loaded in each world.
+     *
+     * @return The count
+     * @see RegionDataManager#setIdleRegionLimits(int, long)
+     */
+    public int getMaxIdleRegions() {
+        return maxIdleRegions;
+    }
+
+    /**
+     * Get how many bytes of regions with no chunks in using are kept loaded in each world, estimated.
+     *
+     * @return The bytes
+     * @see RegionDataManager#setIdleRegionLimits(int, long)
+     */
+    public long getMaxIdleRegionBytes() {
+        return maxIdleRegionBytes;
+    }
+
+    /**
+     * Keep some regions loaded after all their chunks unloaded, so loading the chunks again needs no reading.
+     * An idle region is written in background, and unloaded when the least recently idle one beyond the limits.
+     * Limits are for each world. Changed limits are applied when a region becomes idle next time.
+     *
+     * @param maxRegions How many idle regions are kept at most, 0 to unload regions at once
+     * @param maxBytes   How many bytes of idle regions are kept at most, estimated
+     * @see LoadedRegionData#estimateSize()
+     */
+    public void setIdleRegionLimits(int maxRegions, long maxBytes) {
+        if (maxRegions < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Negative idle region limits");
+        this.maxIdleRegions = maxRegions;
+        this.maxIdleRegionBytes = maxBytes;
+    }
+
+    /**
+     * Is the mutation journal enabled for new worlds?
+     *
+     * @return TRUE if enabled
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * Get how long records wait to be committed to the mutation journals, in milliseconds.
+     *
+     * @return The interval, 0 if committed at once
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public long getJournalCommitInterval() {
+        return journalCommitInterval;
+    }
+
+    /**
+     * Get how many bytes of records in a mutation journal segment start a compaction.
+     *
+     * @return The bytes
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public long getJournalCompactBytes() {
+        return journalCompactBytes;
+    }
+
+    /**
+     * Append every block change to a journal of its world, so changes survive a crash without writing the regions.
+     * Records are committed together every interval, then the changes before are durable. The journal is replayed
+     * when the world manager is created next time, so a crash only loses the changes of the last interval.
+     * When the records of a journal segment exceed the bytes, the changed regions are written in background and
+     * the records are deleted. The settings are applied to worlds created after, journals left by a crash are
+     * replayed even if the journal is disabled.
+     *
+     * @param enabled              Whether to journal block changes
+     * @param commitIntervalMillis How long records wait to be committed in milliseconds, 0 to commit every change
+     *                             in the thread making it, sharing the fsync with other threads
+     * @param compactBytes         How many bytes of records in a segment start a compaction
+     * @see top.yertinmc.regioncore.io.MutationJournal
+     */
+    public void setJournal(boolean enabled, long commitIntervalMillis, long compactBytes) {
+        if (commitIntervalMillis < 0 || compactBytes < 0)
+            throw new IllegalArgumentException("Negative journal settings");
+        this.journalEnabled = enabled;
+        this.journalCommitInterval = commitIntervalMillis;
+        this.journalCompactBytes = compactBytes;
+    }
+
+    /**
+     * Get the scheduler for committing and compacting the mutation journals.
+     *
+     * @return The scheduler
+     */
+    public ScheduledExecutorService getJournalScheduler() {
+        return journalScheduler;
+    }
+
+    /**
+     * Set the scheduler for committing and compacting the mutation journals of worlds created after.
+     * The scheduler is not shut down by this manager.
+     *
+     * @param journalScheduler The scheduler
+     */
+    public void setJournalScheduler(ScheduledExecutorService journalScheduler) {
+        this.journalScheduler = journalScheduler;
+    }
+
+    /**
+     * Get the metrics of this manager, for all the worlds.
+     *
+     * @return The metrics
+     */
+    public RegionMetrics getMetrics() {
+        return metrics;
     }
 
     /**
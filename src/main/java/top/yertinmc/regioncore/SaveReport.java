@@ -0,0 +1,97 @@
+package top.yertinmc.regioncore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a parallel flush.
+ *
+ * @param <W> The type of <code>World</code>
+ * @see RegionDataManager#flushParallel(long, java.util.concurrent.TimeUnit)
+ */
+public final class SaveReport<W> {
+
+    private final int writtenCount;
+    private final List<LoadedRegionData<W>> failedRegions;
+    private final List<LoadedRegionData<W>> unfinishedRegions;
+    private final boolean pendingSavesFinished;
+
+    SaveReport(int writtenCount, List<LoadedRegionData<W>> failedRegions,
+               List<LoadedRegionData<W>> unfinishedRegions, boolean pendingSavesFinished) {
+        this.writtenCount = writtenCount;
+        this.failedRegions = Collections.unmodifiableList(failedRegions);
+        this.unfinishedRegions = Collections.unmodifiableList(unfinishedRegions);
+        this.pendingSavesFinished = pendingSavesFinished;
+    }
+
+    /**
+     * How many regions written by the flush?
+     *
+     * @return The count
+     */
+    public int getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * Get the regions failed to write. They are marked dirty again, and saved with the next write.
+     *
+     * @return The regions
+     */
+    public List<LoadedRegionData<W>> getFailedRegions() {
+        return failedRegions;
+    }
+
+    /**
+     * Get the regions not written before the deadline. They are still being written in background.
+     *
+     * @return The regions
+     */
+    public List<LoadedRegionData<W>> getUnfinishedRegions() {
+        return unfinishedRegions;
+    }
+
+    /**
+     * Have the background saves started before the flush finished before the deadline?
+     *
+     * @return TRUE if finished
+     */
+    public boolean isPendingSavesFinished() {
+        return pendingSavesFinished;
+    }
+
+    /**
+     * Are all the changes written?
+     *
+     * @return TRUE if nothing failed or unfinished
+     */
+    public boolean isComplete() {
+        return pendingSavesFinished && failedRegions.isEmpty() && unfinishedRegions.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("written ").append(writtenCount);
+        appendRegions(builder.append(", failed "), failedRegions);
+        appendRegions(builder.append(", unfinished "), unfinishedRegions);
+        if (!pendingSavesFinished)
+            builder.append(", background saves unfinished");
+        return builder.toString();
+    }
+
+    private static void appendRegions(StringBuilder builder, List<? extends LoadedRegionData<?>> regions) {
+        builder.append(regions.size());
+        if (regions.isEmpty())
+            return;
+        builder.append(" [");
+        for (int i = 0; i < regions.size(); i++) {
+            LoadedRegionData<?> region = regions.get(i);
+            if (i != 0)
+                builder.append("; ");
+            builder.append(region.getManager().getWorldName()).append(' ')
+                    .append(region.getX()).append(',').append(region.getZ());
+        }
+        builder.append(']');
+    }
+
+}
@@ -2,11 +2,36 @@ package top.yertinmc.regioncore;
 
 import org.jetbrains.annotations.Nullable;
 import top.yertinmc.regioncore.io.ChunkData;
-import top.yertinmc.regioncore.io.LayerData;
+import top.yertinmc.regioncore.io.MutationJournal;
+import top.yertinmc.regioncore.metrics.Counter;
+import top.yertinmc.regioncore.metrics.LatencyHistogram;
+import top.yertinmc.regioncore.metrics.RegionMetrics;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A region data world manager.
@@ -18,14 +43,62 @@ public class WorldRegionDataManager<W> {
 
     private final RegionDataManager<W> manager;
     private final File baseDirectory;
-    private final Map<Integer, Map<Integer, LoadedRegionData<W>>> loadedRegions = new HashMap<>();
+    private final LongObjectMap<LoadedRegionData<W>> loadedRegions = new LongObjectMap<>();
+    private final LongObjectMap<PendingRegionLoad<W>> pendingLoads = new LongObjectMap<>();
+    private final StampedLock regionsLock = new StampedLock(); // Guards loadedRegions for lock-free readers
+    private final LinkedHashMap<Long, IdleRegion<W>> idleRegions = new LinkedHashMap<>(); // Least recently idle first
+    private long idleRegionBytes;
     private final W world;
+    private final LatencyHistogram monitorWait;
+    private final Counter idleRegionHits;
+    private final CompletableFuture<Void> opened = new CompletableFuture<>();
+    private MutationJournal journal; // Set when opened, null if not journaling
+    private final long journalCommitInterval;
+    private final long journalCompactBytes;
+    private ScheduledFuture<?> journalCommitTask; // Set when opened
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // Unloaded without written, records kept until replayed for them when the journal closed
+    private final Set<Long> pinnedRegions = ConcurrentHashMap.newKeySet();
+    private volatile boolean journalClosed;
 
     public WorldRegionDataManager(RegionDataManager<W> manager, W world) {
         this.manager = manager;
         this.world = world; // set first for getWorldName() calling
         this.baseDirectory = new File(manager.getBaseDirectory(), getWorldName());
+        this.monitorWait = manager.getMetrics().histogram(RegionMetrics.WORLD_MONITOR_WAIT);
+        this.idleRegionHits = manager.getMetrics().counter(RegionMetrics.IDLE_REGION_HITS);
         assert baseDirectory.mkdir();
+        this.journalCommitInterval = manager.getJournalCommitInterval();
+        this.journalCompactBytes = manager.getJournalCompactBytes();
+    }
+
+    /**
+     * Replay the journal left by the last run, then open the journal of this world.
+     * Called once by the thread which published this manager, so looking up other worlds is not blocked meanwhile.
+     *
+     * @see RegionDataManager#getManager(Object)
+     */
+    void open() {
+        try {
+            File journalDirectory = getJournalDirectory();
+            if (MutationJournal.hasSegments(journalDirectory))
+                replayJournal(journalDirectory); // Before the journal opened, so the replayed changes are not journaled
+            journal = manager.isJournalEnabled() ? openJournal(journalDirectory) : null;
+            journalCommitTask = journal == null || journalCommitInterval == 0 ? null
+                    : manager.getJournalScheduler().scheduleWithFixedDelay(this::commitJournalPeriodically,
+                    journalCommitInterval, journalCommitInterval, TimeUnit.MILLISECONDS);
+        } finally {
+            opened.complete(null);
+        }
+    }
+
+    /**
+     * Wait until this manager opened by the thread which published it.
+     *
+     * @see WorldRegionDataManager#open()
+     */
+    void awaitOpened() {
+        opened.join();
     }
 
     /**
@@ -40,18 +113,142 @@ public class WorldRegionDataManager<W> {
 
     /**
      * Load a region if this region not loaded.
+     * If the region is loading in background, wait for it.
      *
      * @param x The X position of the region
      * @param z The Z position of the region
      */
     public void loadRegion(int x, int z) {
+        PendingRegionLoad<W> pending;
+        long waitStart = System.nanoTime();
         synchronized (this) {
+            monitorWait.recordSince(waitStart);
             if (isRegionLoaded(x, z))
                 return;
-            if (!loadedRegions.containsKey(x))
-                loadedRegions.put(x, new HashMap<>());
-            loadedRegions.get(x).put(z, new LoadedRegionData<>(this, world, x, z));
+            pending = pendingLoads.get(regionKey(x, z));
+            if (pending == null) {
+                putRegion(x, z, new LoadedRegionData<>(this, world, x, z));
+                return;
+            }
         }
+        awaitLoad(pending);
+    }
+
+    /**
+     * Load a region in background if this region not loaded.
+     * Loading the same region twice before finished will share the same future.
+     *
+     * @param x The X position of the region
+     * @param z The Z position of the region
+     * @return The future completed with the loaded region, or with the error if failed, the changes queued for the
+     * region then dropped are noted in the suppressed exceptions
+     * @see RegionDataManager#getIoExecutor()
+     */
+    public CompletableFuture<LoadedRegionData<W>> loadRegionAsync(int x, int z) {
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            monitorWait.recordSince(waitStart);
+            LoadedRegionData<W> region = getRegion(x, z);
+            if (region != null)
+                return CompletableFuture.completedFuture(region);
+            return getOrStartLoad(x, z).future;
+        }
+    }
+
+    /**
+     * Is a region loading in background?
+     *
+     * @param x The X position of the region
+     * @param z The Z position of the region
+     * @return TRUE if loading
+     */
+    public boolean isRegionLoading(int x, int z) {
+        synchronized (this) {
+            return pendingLoads.containsKey(regionKey(x, z));
+        }
+    }
+
+    private PendingRegionLoad<W> getOrStartLoad(int x, int z) {
+        long key = regionKey(x, z);
+        PendingRegionLoad<W> pending = pendingLoads.get(key);
+        if (pending != null)
+            return pending;
+        PendingRegionLoad<W> load = new PendingRegionLoad<>();
+        pendingLoads.put(key, load);
+        CompletableFuture.supplyAsync(() -> new LoadedRegionData<>(this, world, x, z), manager.getIoExecutor())
+                .whenComplete((region, error) -> finishLoad(x, z, load, region, error));
+        return load;
+    }
+
+    private void finishLoad(int x, int z, PendingRegionLoad<W> load, LoadedRegionData<W> region, Throwable error) {
+        try {
+            synchronized (this) {
+                pendingLoads.remove(regionKey(x, z));
+                if (error == null) {
+                    putRegion(x, z, region);
+                    for (Consumer<LoadedRegionData<W>> action : load.actions) {
+                        try {
+                            action.accept(region);
+                        } catch (RuntimeException e) { // The other actions still run
+                            manager.getLogger().error("Error running an action queued for region {},{},{}", world, x, z, e);
+                        }
+                    }
+                } else if (load.mutations > 0) {
+                    manager.getLogger().error("Error loading region data at {},{},{}, {} queued changes dropped", world, x, z, load.mutations, error);
+                    error.addSuppressed(new IllegalStateException(load.mutations + " changes queued for the region dropped"));
+                } else {
+                    manager.getLogger().error("Error loading region data at {},{},{}", world, x, z, error);
+                }
+            }
+        } finally {
+            // Complete outside the monitor, so the dependents never run with this manager locked
+            if (error == null) {
+                load.future.complete(region);
+            } else {
+                load.future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void awaitLoad(PendingRegionLoad<W> pending) {
+        // Errors have been logged by finishLoad, the region is just not loaded
+        pending.future.handle((region, error) -> region).join();
+    }
+
+    private void putRegion(int x, int z, LoadedRegionData<W> region) {
+        long stamp = regionsLock.writeLock();
+        try {
+            loadedRegions.put(regionKey(x, z), region);
+        } finally {
+            regionsLock.unlockWrite(stamp);
+        }
+    }
+
+    private void removeRegion(int x, int z) {
+        long stamp = regionsLock.writeLock();
+        try {
+            loadedRegions.remove(regionKey(x, z));
+        } finally {
+            regionsLock.unlockWrite(stamp);
+        }
+    }
+
+    private PendingRegionLoad<W> getPendingLoadForBlock(int x, int z) {
+        if (pendingLoads.isEmpty())
+            return null;
+        final int regionBlocks = manager.getDefinition().regionSize * getChunkWidth();
+        return pendingLoads.get(regionKey(x / regionBlocks, z / regionBlocks));
+    }
+
+    /**
+     * Pack a region position to a key.
+     *
+     * @param x The X position of the region
+     * @param z The Z position of the region
+     * @return The key
+     */
+    public static long regionKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
     }
 
     /**
@@ -61,17 +258,27 @@ public class WorldRegionDataManager<W> {
      * @param z The Z position of the region
      */
     public void unloadRegion(int x, int z) {
+        long waitStart = System.nanoTime();
         synchronized (this) {
-            if (!isRegionLoaded(x, z))
+            monitorWait.recordSince(waitStart);
+            LoadedRegionData<W> region = loadedRegions.get(regionKey(x, z));
+            if (region == null)
                 return;
-            Map<Integer, LoadedRegionData<W>> xRegions = loadedRegions.get(x);
-            xRegions.get(z).write();
-            xRegions.remove(z);
-            if (xRegions.isEmpty())
-                loadedRegions.remove(x);
+            // Removed first, so new setters wait for this monitor instead of retrying on the unloaded region
+            removeRegion(x, z);
+            removeIdleRegion(regionKey(x, z));
+            unload(region);
         }
     }
 
+    private void unload(LoadedRegionData<W> region) {
+        region.unload();
+        // Failed to write, the changes are only in the journal and the backup. Loading the region again reads the
+        // file without them, so the records are kept until replayed for this region
+        if (region.isDirty())
+            pinnedRegions.add(regionKey(region.getX(), region.getZ()));
+    }
+
     /**
      * Is a region loaded?
      *
@@ -79,11 +286,7 @@ public class WorldRegionDataManager<W> {
      * @param z The Z position of the region
      */
     public boolean isRegionLoaded(int x, int z) {
-        synchronized (this) {
-            if (!loadedRegions.containsKey(x))
-                return false;
-            return loadedRegions.get(x).containsKey(z);
-        }
+        return getRegion(x, z) != null;
     }
 
     /**
@@ -94,56 +297,147 @@ public class WorldRegionDataManager<W> {
      * @return The region instance
      */
     public LoadedRegionData<W> getRegion(int x, int z) {
-        Map<Integer, LoadedRegionData<W>> xMap = loadedRegions.get(x);
-        if (xMap == null)
-            return null;
-        return xMap.get(z);
+        long key = regionKey(x, z);
+        long stamp = regionsLock.tryOptimisticRead();
+        if (stamp != 0) {
+            LoadedRegionData<W> region = loadedRegions.get(key);
+            if (regionsLock.validate(stamp))
+                return region;
+        }
+        stamp = regionsLock.readLock();
+        try {
+            return loadedRegions.get(key);
+        } finally {
+            regionsLock.unlockRead(stamp);
+        }
     }
 
     /**
      * Load a chunk if the region with the chunk not loaded.
+     * If the region is loading in background, wait for it.
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
      */
     public void loadChunk(int x, int z) {
+        PendingRegionLoad<W> pending;
+        long waitStart = System.nanoTime();
         synchronized (this) {
+            monitorWait.recordSince(waitStart);
             final int regionSize = manager.getDefinition().regionSize;
             int regionX = x / regionSize;
             int regionZ = z / regionSize;
-            loadRegion(regionX, regionZ);
-            Object chunk = getChunk(x, z);
-            if (chunk instanceof ChunkData) {
-                ((ChunkData) chunk).markUsing();
-            } else {
-                getRegion(regionX, regionZ).setChunkUsingPlaceholder(x % regionSize, z % regionSize);
+            pending = pendingLoads.get(regionKey(regionX, regionZ));
+            if (pending == null) {
+                loadRegion(regionX, regionZ);
+                markChunkUsing(getRegion(regionX, regionZ), x, z);
+                return;
             }
+            pending.actions.add((region) -> markChunkUsing(region, x, z));
         }
+        awaitLoad(pending);
+    }
+
+    /**
+     * Load a chunk in background if the region with the chunk not loaded.
+     * The chunk is marked in using as soon as the region is loaded.
+     *
+     * @param x The X position of the chunk
+     * @param z The Z position of the chunk
+     * @return The future completed with the region of the chunk
+     */
+    public CompletableFuture<LoadedRegionData<W>> loadChunkAsync(int x, int z) {
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            monitorWait.recordSince(waitStart);
+            final int regionSize = manager.getDefinition().regionSize;
+            int regionX = x / regionSize;
+            int regionZ = z / regionSize;
+            LoadedRegionData<W> region = getRegion(regionX, regionZ);
+            if (region != null) {
+                markChunkUsing(region, x, z);
+                return CompletableFuture.completedFuture(region);
+            }
+            PendingRegionLoad<W> pending = getOrStartLoad(regionX, regionZ);
+            pending.actions.add((loaded) -> markChunkUsing(loaded, x, z));
+            return pending.future;
+        }
+    }
+
+    private void markChunkUsing(LoadedRegionData<W> region, int x, int z) {
+        final int regionSize = manager.getDefinition().regionSize;
+        region.useChunk(x % regionSize, z % regionSize);
+        if (removeIdleRegion(regionKey(region.getX(), region.getZ())))
+            idleRegionHits.increment();
+    }
+
+    private boolean removeIdleRegion(long key) {
+        IdleRegion<W> idle = idleRegions.remove(key);
+        if (idle == null)
+            return false;
+        idleRegionBytes -= idle.size;
+        return true;
+    }
+
+    /**
+     * Keep a region with no chunks in using loaded, and unload the least recently idle regions beyond the limits.
+     * Should be called with this manager locked.
+     *
+     * @return The task to write the region in background, or null if not changed or unloaded
+     */
+    private Runnable retireRegion(int x, int z, LoadedRegionData<W> region) {
+        final int maxRegions = manager.getMaxIdleRegions();
+        final long maxBytes = manager.getMaxIdleRegionBytes();
+        long size = region.estimateSize();
+        if (maxRegions == 0 || size > maxBytes) {
+            removeRegion(x, z);
+            unload(region);
+            return null;
+        }
+        removeIdleRegion(regionKey(x, z)); // Another chunk not in using released
+        idleRegions.put(regionKey(x, z), new IdleRegion<>(region, size));
+        idleRegionBytes += size;
+        Iterator<IdleRegion<W>> iterator = idleRegions.values().iterator();
+        while (idleRegions.size() > maxRegions || idleRegionBytes > maxBytes) {
+            IdleRegion<W> eldest = iterator.next();
+            iterator.remove();
+            idleRegionBytes -= eldest.size;
+            removeRegion(eldest.region.getX(), eldest.region.getZ());
+            unload(eldest.region);
+        }
+        return region.isUnloaded() ? null : region.snapshotWrite();
     }
 
     /**
      * Unload a chunk and unload the region if no using chunks in the region.
+     * The region may be kept loaded as idle for a while, see <code>RegionDataManager#setIdleRegionLimits</code>.
+     * If the region is loading in background, the chunk will be unloaded after loaded.
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
      */
     public void unloadChunk(int x, int z) {
+        Runnable save;
+        long waitStart = System.nanoTime();
         synchronized (this) {
+            monitorWait.recordSince(waitStart);
             final int regionSize = manager.getDefinition().regionSize;
             int regionX = x / regionSize;
             int regionZ = z / regionSize;
-            if (!isRegionLoaded(regionX, regionZ))
+            PendingRegionLoad<W> pending = pendingLoads.get(regionKey(regionX, regionZ));
+            if (pending != null) {
+                pending.actions.add((region) -> unloadChunk(x, z));
                 return;
-            LoadedRegionData<W> region = getRegion(regionX, regionZ);
-            Object chunk = getChunk(x, z);
-            if (chunk instanceof ChunkData) {
-                ((ChunkData) chunk).resetUsing();
-            } else {
-                region.resetChunkUsingPlaceholder(x % regionSize, z % regionSize);
             }
-            if (!region.isUsing())
-                unloadRegion(regionX, regionZ);
+            LoadedRegionData<W> region = getRegion(regionX, regionZ);
+            if (region == null)
+                return;
+            if (region.releaseChunk(x % regionSize, z % regionSize))
+                return;
+            save = retireRegion(regionX, regionZ, region);
         }
+        if (save != null) // Submitted out of the monitor, writeAsync locks the saving before the worlds
+            manager.submitSave(save);
     }
 
     /**
@@ -166,8 +460,9 @@ public class WorldRegionDataManager<W> {
      * @return TRUE if loaded.
      */
     public boolean isChunkUsing(int x, int z) {
-        return isChunkLoaded(x, z) && (getChunk(x, z) instanceof ChunkUsingPlaceholder
-                || ((ChunkData) getChunk(x, z)).isUsing());
+        final int regionSize = manager.getDefinition().regionSize;
+        LoadedRegionData<W> region = getRegion(x / regionSize, z / regionSize);
+        return region != null && region.isChunkUsing(x % regionSize, z % regionSize);
     }
 
     /**
@@ -175,15 +470,14 @@ public class WorldRegionDataManager<W> {
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
-     * @return The chunk data or UsingChunkPlaceholder
+     * @return The chunk data, or null if not created
      */
     public Object getChunk(int x, int z) {
         final int regionSize = manager.getDefinition().regionSize;
         LoadedRegionData<W> region = getRegion(x / regionSize, z / regionSize);
         if (region == null)
             return null;
-        return region.getData().getChunkData(
-                x % regionSize, z % regionSize);
+        return region.getChunk(x % regionSize, z % regionSize);
     }
 
     /**
@@ -207,17 +501,58 @@ public class WorldRegionDataManager<W> {
      * Save all regions loaded.
      */
     public void write() {
+        long waitStart = System.nanoTime();
         synchronized (this) {
-            for (Map<Integer, LoadedRegionData<W>> yMap : loadedRegions.values()) {
-                for (LoadedRegionData<W> regionData : yMap.values()) {
-                    regionData.write();
-                }
-            }
+            monitorWait.recordSince(waitStart);
+            loadedRegions.forEachValue(LoadedRegionData::write);
         }
     }
 
     /**
-     * Get the data of a block
+     * Take snapshots of all changed regions loaded.
+     *
+     * @return The tasks to write the snapshots
+     * @see LoadedRegionData#snapshotWrite()
+     */
+    public List<Runnable> snapshotWrites() {
+        List<Runnable> tasks = new ArrayList<>();
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            monitorWait.recordSince(waitStart);
+            loadedRegions.forEachValue((regionData) -> {
+                Runnable task = regionData.snapshotWrite();
+                if (task != null)
+                    tasks.add(task);
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Take snapshots of all the loaded and modified regions in this world, for writing in parallel.
+     *
+     * @param writePermits The permits of concurrent file writes
+     * @return The tasks by regions, writing the snapshots and returning FALSE if failed
+     * @see LoadedRegionData#snapshotWrite(Semaphore)
+     */
+    public Map<LoadedRegionData<W>, BooleanSupplier> snapshotWrites(Semaphore writePermits) {
+        Map<LoadedRegionData<W>, BooleanSupplier> tasks = new LinkedHashMap<>();
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            monitorWait.recordSince(waitStart);
+            loadedRegions.forEachValue((regionData) -> {
+                BooleanSupplier task = regionData.snapshotWrite(writePermits);
+                if (task != null)
+                    tasks.put(regionData, task);
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Get the data of a block.
+     * Reading does not lock this manager, and does not block other readers of the region.
+     * If the region with the block is loading in background, wait for it.
      *
      * @param x The X position of the block
      * @param y The Y position of the block
@@ -225,20 +560,34 @@ public class WorldRegionDataManager<W> {
      * @return The data of the required block
      */
     public Object get(int x, int y, int z) {
-        synchronized (this) {
-            final int chunkWidth = getChunkWidth();
-            ChunkData chunk = getBlockChunk(x, z);
-            if (chunk == null) // Chunk not loaded
-                return null;
-            LayerData layer = chunk.getLayer(y);
-            if (layer == null) // Empty layer
-                return null;
-            return layer.getBlock(x % chunkWidth, z % chunkWidth);
+        final int regionSize = manager.getDefinition().regionSize;
+        final int chunkWidth = getChunkWidth();
+        int worldChunkPosX = x / chunkWidth;
+        int worldChunkPosZ = z / chunkWidth;
+        LoadedRegionData<W> region = getRegion(worldChunkPosX / regionSize, worldChunkPosZ / regionSize);
+        if (region == null) {
+            PendingRegionLoad<W> pending;
+            synchronized (this) {
+                pending = getPendingLoadForBlock(x, z);
+                if (pending == null) {
+                    region = getRegion(worldChunkPosX / regionSize, worldChunkPosZ / regionSize);
+                    if (region == null) // Region not loaded
+                        return null;
+                }
+            }
+            if (pending != null) {
+                awaitLoad(pending);
+                return get(x, y, z);
+            }
         }
+        return region.getBlock(worldChunkPosX % regionSize, worldChunkPosZ % regionSize, y,
+                x % chunkWidth, z % chunkWidth);
     }
 
     /**
-     * Set the data of a block
+     * Set the data of a block.
+     * Only the region with the block is locked while setting.
+     * If the region with the block is loading in background, the data will be set after loaded.
      *
      * @param x    The X position of the block
      * @param y    The Y position of the block
@@ -246,32 +595,707 @@ public class WorldRegionDataManager<W> {
      * @param data The data to set
      */
     public void set(int x, int y, int z, Object data) {
+        final int regionSize = manager.getDefinition().regionSize;
+        final int chunkWidth = getChunkWidth();
+        int worldChunkPosX = x / chunkWidth;
+        int worldChunkPosZ = z / chunkWidth;
+        int regionChunkPosX = worldChunkPosX % regionSize;
+        int regionChunkPosZ = worldChunkPosZ % regionSize;
+        int chunkOffsetX = x % chunkWidth;
+        int chunkOffsetZ = z % chunkWidth;
+        while (true) {
+            LoadedRegionData<W> region = getRegion(worldChunkPosX / regionSize, worldChunkPosZ / regionSize);
+            if (region == null) {
+                synchronized (this) {
+                    PendingRegionLoad<W> pending = getPendingLoadForBlock(x, z);
+                    if (pending != null) {
+                        pending.actions.add((loaded) -> set(x, y, z, data));
+                        pending.mutations++;
+                        return;
+                    }
+                    region = getRegion(worldChunkPosX / regionSize, worldChunkPosZ / regionSize);
+                    if (region == null) // Check region loaded
+                        throw new IllegalStateException("Region not loaded for block pos " + x + ", " + y + ", " + z + " but trying to set.");
+                }
+            }
+            long[] position = {-1};
+            if (region.setBlock(regionChunkPosX, regionChunkPosZ, y, chunkOffsetX, chunkOffsetZ, data,
+                    journal == null ? null : () -> position[0] = journalSet(x, y, z, data))) {
+                journalCommit(position[0]);
+                return;
+            }
+            // The region has been unloaded just now, look up again
+        }
+    }
+
+    /**
+     * Set the data of many blocks.
+     * Blocks are grouped by regions, and every region is locked once.
+     * If a region with the blocks is loading in background, the data of its blocks will be set after loaded.
+     *
+     * @param blocks The data to set of the blocks, null to remove
+     * @throws IllegalStateException If a region with the blocks is neither loaded nor loading, no block is set then
+     */
+    public void setAll(Map<BlockPosition, ?> blocks) {
+        final int regionSize = manager.getDefinition().regionSize;
+        final int chunkWidth = getChunkWidth();
+        LongObjectMap<List<Map.Entry<BlockPosition, ?>>> byRegion = new LongObjectMap<>();
+        for (Map.Entry<BlockPosition, ?> entry : blocks.entrySet()) {
+            BlockPosition pos = entry.getKey();
+            long key = regionKey(pos.x / chunkWidth / regionSize, pos.z / chunkWidth / regionSize);
+            List<Map.Entry<BlockPosition, ?>> group = byRegion.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                byRegion.put(key, group);
+            }
+            group.add(entry);
+        }
+        checkRegionsLoaded(byRegion);
+        byRegion.forEach((key, group) -> editRegion((int) (key >> 32), (int) key, (setter) -> {
+            for (Map.Entry<BlockPosition, ?> entry : group) {
+                BlockPosition pos = entry.getKey();
+                int worldChunkPosX = pos.x / chunkWidth;
+                int worldChunkPosZ = pos.z / chunkWidth;
+                setter.set(worldChunkPosX % regionSize, worldChunkPosZ % regionSize, pos.y,
+                        pos.x % chunkWidth, pos.z % chunkWidth, entry.getValue());
+            }
+        }, () -> {
+            long position = -1;
+            for (Map.Entry<BlockPosition, ?> entry : group) {
+                BlockPosition pos = entry.getKey();
+                position = Math.max(position, journalSet(pos.x, pos.y, pos.z, entry.getValue()));
+            }
+            return position;
+        }));
+    }
+
+    /**
+     * Set the data of all the blocks in a box.
+     * Every region in the box is locked once, and positions are computed once for each column of blocks.
+     * If a region in the box is loading in background, the data of its blocks will be set after loaded.
+     * Blocks out of the height of this world are ignored.
+     *
+     * @param box  The box
+     * @param data The data to set, null to remove
+     * @throws IllegalStateException If a region in the box is neither loaded nor loading, no block is set then
+     */
+    public void fill(BlockBox box, Object data) {
+        final int regionSize = manager.getDefinition().regionSize;
+        final int chunkWidth = getChunkWidth();
+        final int minY = Math.max(box.minY, 0);
+        final int maxY = Math.min(box.maxY, getHeight() - 1);
+        if (minY > maxY)
+            return;
+        // Blocks of a region are in a run of X and a run of Z, as the region of a position never decreases
+        List<int[]> runsX = positionRuns(box.minX, box.maxX, chunkWidth * regionSize);
+        List<int[]> runsZ = positionRuns(box.minZ, box.maxZ, chunkWidth * regionSize);
+        LongObjectMap<int[]> byRegion = new LongObjectMap<>();
+        for (int[] runX : runsX) {
+            for (int[] runZ : runsZ) {
+                byRegion.put(regionKey(runX[0], runZ[0]), new int[]{runX[1], runX[2], runZ[1], runZ[2]});
+            }
+        }
+        checkRegionsLoaded(byRegion);
+        byRegion.forEach((key, run) -> editRegion((int) (key >> 32), (int) key, (setter) -> {
+            for (int x = run[0]; x <= run[1]; x++) {
+                int regionChunkPosX = x / chunkWidth % regionSize;
+                int chunkOffsetX = x % chunkWidth;
+                for (int z = run[2]; z <= run[3]; z++) {
+                    int regionChunkPosZ = z / chunkWidth % regionSize;
+                    int chunkOffsetZ = z % chunkWidth;
+                    for (int y = minY; y <= maxY; y++) {
+                        setter.set(regionChunkPosX, regionChunkPosZ, y, chunkOffsetX, chunkOffsetZ, data);
+                    }
+                }
+            }
+        }, () -> journalFill(run[0], minY, run[2], run[1], maxY, run[3], data)));
+    }
+
+    /**
+     * Remove the data of all the blocks in a box.
+     *
+     * @param box The box
+     * @throws IllegalStateException If a region in the box is neither loaded nor loading, no block is removed then
+     * @see WorldRegionDataManager#fill(BlockBox, Object)
+     */
+    public void clear(BlockBox box) {
+        fill(box, null);
+    }
+
+    /**
+     * Move the data of many blocks by an offset.
+     * The data of the origin blocks will be removed, unless moved into by another block.
+     * All the data is read before any block is changed, so origins and destinations may overlap.
+     * Origins are grouped by regions, and every region is locked once for reading and once for setting.
+     *
+     * @param positions The positions of the origin blocks
+     * @param dx        The X offset
+     * @param dy        The Y offset
+     * @param dz        The Z offset
+     * @throws IllegalStateException If a region with the blocks is neither loaded nor loading, no block is set then
+     * @see WorldRegionDataManager#setAll(Map)
+     */
+    public void moveAll(Collection<BlockPosition> positions, int dx, int dy, int dz) {
+        final int regionSize = manager.getDefinition().regionSize;
+        final int chunkWidth = getChunkWidth();
+        Map<BlockPosition, Object> blocks = new HashMap<>();
+        LongObjectMap<List<BlockPosition>> byRegion = new LongObjectMap<>();
+        for (BlockPosition pos : positions) {
+            blocks.put(pos, null);
+            long key = regionKey(pos.x / chunkWidth / regionSize, pos.z / chunkWidth / regionSize);
+            List<BlockPosition> group = byRegion.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                byRegion.put(key, group);
+            }
+            group.add(pos);
+        }
+        byRegion.forEach((key, group) -> {
+            Object[] data = getBlocks((int) (key >> 32), (int) key, group);
+            for (int i = 0; i < data.length; i++) {
+                blocks.put(group.get(i).offset(dx, dy, dz), data[i]);
+            }
+        });
+        setAll(blocks);
+    }
+
+    /**
+     * Get the data of blocks in a region, with the region locked once.
+     * If the region is loading in background, wait for it.
+     *
+     * @return The data of the blocks in the order of the positions, all null if the region not loaded
+     */
+    private Object[] getBlocks(int x, int z, List<BlockPosition> positions) {
+        LoadedRegionData<W> region = getRegion(x, z);
+        if (region == null) {
+            PendingRegionLoad<W> pending;
+            synchronized (this) {
+                pending = pendingLoads.get(regionKey(x, z));
+                if (pending == null) {
+                    region = getRegion(x, z);
+                    if (region == null) // Region not loaded
+                        return new Object[positions.size()];
+                }
+            }
+            if (pending != null) {
+                awaitLoad(pending);
+                return getBlocks(x, z, positions);
+            }
+        }
+        return region.getBlocks(positions);
+    }
+
+    /**
+     * Cut a range of block positions into runs in the same chunk or region.
+     *
+     * @param min   The first position
+     * @param max   The last position
+     * @param width The width of a chunk or region in blocks
+     * @return The chunk or region, the first and the last position of every run
+     */
+    static List<int[]> positionRuns(int min, int max, int width) {
+        List<int[]> runs = new ArrayList<>();
+        int start = min;
+        while (true) {
+            int run = start / width;
+            long end = Math.min(max, lastPosition(run, width));
+            runs.add(new int[]{run, start, (int) end});
+            if (end >= max)
+                return runs;
+            start = (int) end + 1;
+        }
+    }
+
+    private static long firstPosition(int run, int width) {
+        // By truncating division like all the positions, so run 0 has the positions around 0 on both sides
+        return run > 0 ? (long) run * width : (long) run * width - width + 1;
+    }
+
+    private static long lastPosition(int run, int width) {
+        return run < 0 ? (long) run * width : (long) run * width + width - 1;
+    }
+
+    /**
+     * Get the box of all the blocks in a chunk.
+     *
+     * @param x The X position of the chunk
+     * @param z The Z position of the chunk
+     * @return The box
+     */
+    public BlockBox getChunkBox(int x, int z) {
+        return getBox(x, z, getChunkWidth());
+    }
+
+    /**
+     * Get the box of all the blocks in a region.
+     *
+     * @param x The X position of the region
+     * @param z The Z position of the region
+     * @return The box
+     */
+    public BlockBox getRegionBox(int x, int z) {
+        return getBox(x, z, getChunkWidth() * manager.getDefinition().regionSize);
+    }
+
+    private BlockBox getBox(int x, int z, int width) {
+        return new BlockBox((int) firstPosition(x, width), 0, (int) firstPosition(z, width),
+                (int) lastPosition(x, width), getHeight() - 1, (int) lastPosition(z, width));
+    }
+
+    /**
+     * Get a spliterator of the blocks with data in a box.
+     * Blocks are read chunk by chunk, every chunk is read with its region locked once.
+     * Regions not loaded, chunks not created and empty layers are skipped without visiting their blocks.
+     * The spliterator splits by chunks, so scans of big boxes can run in parallel.
+     * Blocks out of the height of this world are ignored.
+     *
+     * @param box The box
+     * @return The spliterator of positions and data of blocks
+     */
+    public Spliterator<Map.Entry<BlockPosition, Object>> spliterator(BlockBox box) {
+        return new BlockSpliterator<>(this, new BlockBox(box.minX, Math.max(box.minY, 0), box.minZ,
+                box.maxX, Math.min(box.maxY, getHeight() - 1), box.maxZ));
+    }
+
+    /**
+     * Stream the blocks with data in a box. Make it parallel for scanning big boxes.
+     *
+     * @param box The box
+     * @return The stream of positions and data of blocks
+     * @see WorldRegionDataManager#spliterator(BlockBox)
+     */
+    public Stream<Map.Entry<BlockPosition, Object>> stream(BlockBox box) {
+        return StreamSupport.stream(spliterator(box), false);
+    }
+
+    /**
+     * Stream the blocks with data in a chunk.
+     *
+     * @param x The X position of the chunk
+     * @param z The Z position of the chunk
+     * @return The stream of positions and data of blocks
+     */
+    public Stream<Map.Entry<BlockPosition, Object>> streamChunk(int x, int z) {
+        return stream(getChunkBox(x, z));
+    }
+
+    /**
+     * Stream the blocks with data in a region.
+     *
+     * @param x The X position of the region
+     * @param z The Z position of the region
+     * @return The stream of positions and data of blocks
+     */
+    public Stream<Map.Entry<BlockPosition, Object>> streamRegion(int x, int z) {
+        return stream(getRegionBox(x, z));
+    }
+
+    /**
+     * Visit the blocks with data in a box, in the calling thread.
+     *
+     * @param box     The box
+     * @param visitor The action for every block
+     * @see WorldRegionDataManager#spliterator(BlockBox)
+     */
+    public void forEach(BlockBox box, BlockVisitor visitor) {
+        spliterator(box).forEachRemaining((entry) -> {
+            BlockPosition pos = entry.getKey();
+            visitor.visit(pos.x, pos.y, pos.z, entry.getValue());
+        });
+    }
+
+    /**
+     * Visit the blocks with data in a chunk, in the calling thread.
+     *
+     * @param x       The X position of the chunk
+     * @param z       The Z position of the chunk
+     * @param visitor The action for every block
+     */
+    public void forEachInChunk(int x, int z, BlockVisitor visitor) {
+        forEach(getChunkBox(x, z), visitor);
+    }
+
+    /**
+     * Visit the blocks with data in a region, in the calling thread.
+     *
+     * @param x       The X position of the region
+     * @param z       The Z position of the region
+     * @param visitor The action for every block
+     */
+    public void forEachInRegion(int x, int z, BlockVisitor visitor) {
+        forEach(getRegionBox(x, z), visitor);
+    }
+
+    private void checkRegionsLoaded(LongObjectMap<?> regions) {
         synchronized (this) {
-            final int regionSize = manager.getDefinition().regionSize;
-            final int chunkWidth = getChunkWidth();
-            LoadedRegionData<W> region = getRegion(x / chunkWidth / regionSize,
-                    z / chunkWidth / regionSize);
-            if (region == null) // Check region loaded
-                throw new IllegalStateException("Region not loaded for block pos " + x + ", " + y + ", " + z + " but trying to set.");
-            int worldChunkPosX = x / chunkWidth;
-            int worldChunkPosZ = z / chunkWidth;
-            int regionChunkPosX = worldChunkPosX % regionSize;
-            int regionChunkPosZ = worldChunkPosZ % regionSize;
-            int chunkOffsetX = x % chunkWidth;
-            int chunkOffsetZ = z % chunkWidth;
-            @Nullable Object chunkData = data == null ? region.getData().getChunkData(regionChunkPosX, regionChunkPosZ) :
-                    region.getData().getOrInitChunkData(regionChunkPosX, regionChunkPosZ);
-            if (chunkData instanceof ChunkData) {
-                ChunkData chunk = (ChunkData) chunkData;
-                @Nullable LayerData layer = data == null ? chunk.getLayer(y) : chunk.getOrInitLayer(y);
-                if (layer != null) {
-                    layer.setBlock(chunkOffsetX, chunkOffsetZ, data);
-                    region.markDirty();
+            regions.forEach((key, value) -> {
+                int x = (int) (key >> 32);
+                int z = (int) key;
+                if (!isRegionLoaded(x, z) && !pendingLoads.containsKey(key))
+                    throw new IllegalStateException("Region not loaded at " + x + ", " + z + " but trying to set blocks.");
+            });
+        }
+    }
+
+    /**
+     * Set blocks in a region, then journal the changes if set.
+     */
+    private void editRegion(int x, int z, Consumer<LoadedRegionData.BlockSetter> action, LongSupplier journalAction) {
+        while (true) {
+            LoadedRegionData<W> region = getRegion(x, z);
+            if (region == null) {
+                synchronized (this) {
+                    PendingRegionLoad<W> pending = pendingLoads.get(regionKey(x, z));
+                    if (pending != null) {
+                        pending.actions.add((loaded) -> editRegion(x, z, action, journalAction));
+                        pending.mutations++;
+                        return;
+                    }
+                    region = getRegion(x, z);
+                    if (region == null) // Unloaded after checked
+                        throw new IllegalStateException("Region not loaded at " + x + ", " + z + " but trying to set blocks.");
+                }
+            }
+            long[] position = {-1};
+            if (region.setBlocks(action, journal == null ? null : () -> position[0] = journalAction.getAsLong())) {
+                journalCommit(position[0]);
+                return;
+            }
+            // The region has been unloaded just now, look up again
+        }
+    }
+
+    // Records are appended after the changes made, with the region still locked, so the records of a block are in
+    // the order of its changes. A compaction rotating before appended has the changes in its snapshots, and a record
+    // in a segment kept is never older than the snapshots. Records are committed after the region unlocked.
+
+    /**
+     * Append a record of setting a block, should be called with the region locked.
+     *
+     * @return The position to commit to, or -1 if not appended
+     */
+    private long journalSet(int x, int y, int z, Object data) {
+        if (journal == null || journalClosed)
+            return -1;
+        try {
+            long position = journal.appendSet(x, y, z, data);
+            manager.getMetrics().counter(RegionMetrics.JOURNAL_RECORDS).increment();
+            return position;
+        } catch (IOException | RuntimeException e) {
+            manager.getLogger().error("Error journaling block change at {},{},{},{}", world, x, y, z, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Append a record of setting all the blocks in a box, should be called with the regions locked.
+     *
+     * @return The position to commit to, or -1 if not appended
+     */
+    private long journalFill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Object data) {
+        if (journal == null || journalClosed)
+            return -1;
+        try {
+            long position = journal.appendFill(minX, minY, minZ, maxX, maxY, maxZ, data);
+            manager.getMetrics().counter(RegionMetrics.JOURNAL_RECORDS).increment();
+            return position;
+        } catch (IOException | RuntimeException e) {
+            manager.getLogger().error("Error journaling block changes at {},{},{},{} to {},{},{}",
+                    world, minX, minY, minZ, maxX, maxY, maxZ, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Commit the records appended until a position, if committing every change. Should be called with no region
+     * locked, as other threads sharing the commit wait for it.
+     */
+    private void journalCommit(long position) {
+        if (position < 0 || journalCommitInterval != 0)
+            return;
+        long start = System.nanoTime();
+        try {
+            journal.commit(position);
+            manager.getMetrics().histogram(RegionMetrics.JOURNAL_COMMIT).recordSince(start);
+        } catch (IOException e) {
+            manager.getLogger().error("Error committing the mutation journal of {}", world, e);
+        }
+    }
+
+    private MutationJournal openJournal(File directory) {
+        try {
+            return new MutationJournal(directory, manager.getDefinition().codec);
+        } catch (IOException e) {
+            manager.getLogger().error("Error opening the mutation journal in {}, changes of {} are not journaled",
+                    directory, world, e);
+            return null;
+        }
+    }
+
+    /**
+     * Apply the changes in the journal left by the last run, write the changed regions and delete the journal.
+     * Regions are loaded for the changes, and unloaded after written.
+     */
+    private void replayJournal(File directory) {
+        int[] skipped = new int[1];
+        int count;
+        try {
+            count = replayRecords(directory, null, skipped);
+        } catch (IOException | RuntimeException e) {
+            manager.getLogger().error("Error replaying the mutation journal in {}, kept for the next time",
+                    directory, e);
+            count = -1;
+        }
+        boolean written = true;
+        synchronized (this) {
+            List<LoadedRegionData<W>> regions = new ArrayList<>(loadedRegions.size());
+            loadedRegions.forEachValue(regions::add);
+            for (LoadedRegionData<W> region : regions) {
+                removeRegion(region.getX(), region.getZ());
+                region.unload();
+                written &= !region.isDirty();
+            }
+        }
+        if (count < 0)
+            return;
+        if (!written) {
+            manager.getLogger().error("Error writing regions replayed from the mutation journal in {}, kept for the"
+                    + " next time", directory);
+            return;
+        }
+        try {
+            MutationJournal.deleteSegments(directory);
+        } catch (IOException e) {
+            manager.getLogger().error("Error deleting the mutation journal in {}", directory, e);
+        }
+        manager.getLogger().info("Replayed {} changes of {} from the mutation journal, {} skipped",
+                count, world, skipped[0]);
+    }
+
+    /**
+     * Apply the records in the journal, loading the regions changed by them.
+     *
+     * @param directory The directory of the segments
+     * @param regions   The keys of the regions to apply the records to, or null for all the regions
+     * @param skipped   The count of the records failed to apply, increased
+     * @return How many records read
+     */
+    private int replayRecords(File directory, @Nullable Set<Long> regions, int[] skipped) throws IOException {
+        final int regionBlocks = manager.getDefinition().regionSize * getChunkWidth();
+        return MutationJournal.replay(directory, manager.getDefinition().codec, new MutationJournal.Replayer() {
+
+            @Override
+            public void set(int x, int y, int z, Object data) {
+                if (regions != null && !regions.contains(regionKey(x / regionBlocks, z / regionBlocks)))
+                    return;
+                try {
+                    loadRegion(x / regionBlocks, z / regionBlocks);
+                    WorldRegionDataManager.this.set(x, y, z, data);
+                } catch (RuntimeException e) {
+                    skipped[0]++;
+                    manager.getLogger().error("Error replaying block change at {},{},{},{}", world, x, y, z, e);
+                }
+            }
+
+            @Override
+            public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Object data) {
+                try {
+                    // Filled region by region, so the parts in the regions not replayed are skipped
+                    for (int[] runX : positionRuns(minX, maxX, regionBlocks)) {
+                        for (int[] runZ : positionRuns(minZ, maxZ, regionBlocks)) {
+                            if (regions != null && !regions.contains(regionKey(runX[0], runZ[0])))
+                                continue;
+                            loadRegion(runX[0], runZ[0]);
+                            WorldRegionDataManager.this.fill(new BlockBox(runX[1], minY, runZ[1], runX[2], maxY, runZ[2]), data);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    skipped[0]++;
+                    manager.getLogger().error("Error replaying block changes at {},{},{},{} to {},{},{}",
+                            world, minX, minY, minZ, maxX, maxY, maxZ, e);
                 }
             }
+
+        });
+    }
+
+    /**
+     * Write and sync the records appended to the journal of this world.
+     * Changes made before are durable after this returns.
+     *
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public void commitJournal() {
+        awaitOpened();
+        if (journal == null || journalClosed)
+            return;
+        long start = System.nanoTime();
+        try {
+            journal.commit();
+            manager.getMetrics().histogram(RegionMetrics.JOURNAL_COMMIT).recordSince(start);
+        } catch (IOException e) {
+            manager.getLogger().error("Error committing the mutation journal of {}", world, e);
+        }
+    }
+
+    private void commitJournalPeriodically() {
+        commitJournal();
+        try {
+            if (journal.getSegmentSize() >= journalCompactBytes && !compacting.get())
+                compactJournal();
+        } catch (RuntimeException e) { // Never stop the periodic task
+            manager.getLogger().error("Error compacting the mutation journal of {}", world, e);
         }
     }
 
+    /**
+     * Write the regions changed by the records in the journal of this world in background, then delete the records.
+     * The journal starts a new segment first, then snapshots of all the regions not written are taken. The old
+     * segments are deleted after all the snapshots written. Only one compaction runs at a time.
+     *
+     * @return The future completed with FALSE if any region failed to write, also when unloaded before, the records
+     * are kept then, or FALSE at once if another compaction is running
+     * @see RegionDataManager#setJournal(boolean, long, long)
+     */
+    public CompletableFuture<Boolean> compactJournal() {
+        awaitOpened();
+        if (journal == null || journalClosed)
+            return CompletableFuture.completedFuture(true);
+        if (!compacting.compareAndSet(false, true)) // Segments not deleted until the running compaction finished
+            return CompletableFuture.completedFuture(false);
+        long segment;
+        try {
+            segment = journal.rotate();
+        } catch (IOException e) {
+            compacting.set(false);
+            manager.getLogger().error("Error rotating the mutation journal of {}", world, e);
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            // Also the regions with snapshots not written yet, as idle regions are submitted after this monitor released
+            List<BooleanSupplier> tasks = new ArrayList<>();
+            long waitStart = System.nanoTime();
+            synchronized (this) {
+                monitorWait.recordSince(waitStart);
+                loadedRegions.forEachValue((region) -> {
+                    BooleanSupplier task = region.snapshotWriteAll();
+                    if (task != null)
+                        tasks.add(task);
+                });
+            }
+            manager.submitSave(() -> {
+                boolean written = true;
+                try {
+                    for (BooleanSupplier task : tasks) {
+                        written &= task.getAsBoolean();
+                    }
+                    if (written && pinnedRegions.isEmpty())
+                        journal.deleteSegmentsBefore(segment);
+                } catch (IOException | RuntimeException e) {
+                    manager.getLogger().error("Error compacting the mutation journal of {}", world, e);
+                    written = false;
+                } finally {
+                    compacting.set(false);
+                    result.complete(written && pinnedRegions.isEmpty());
+                }
+            });
+        } catch (RuntimeException e) {
+            compacting.set(false);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Commit and close the journal of this world. Changes made after closed are not journaled, so close it after the
+     * changes finished.
+     * All the regions are written then, also the regions failed to write when unloaded, with their records replayed
+     * again, and the journal is deleted. The journal is kept if any region still failed to write.
+     */
+    public void closeJournal() {
+        awaitOpened();
+        if (journal == null || journalClosed)
+            return;
+        journalClosed = true; // Nothing appended after, so the regions written below have all the changes journaled
+        if (journalCommitTask != null)
+            journalCommitTask.cancel(false);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            manager.getLogger().error("Error closing the mutation journal of {}", world, e);
+        }
+        List<LoadedRegionData<W>> regions = new ArrayList<>();
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            monitorWait.recordSince(waitStart);
+            loadedRegions.forEachValue(regions::add);
+        }
+        for (LoadedRegionData<W> region : regions) {
+            BooleanSupplier task = region.snapshotWriteAll();
+            if (task != null && !task.getAsBoolean())
+                pinnedRegions.add(regionKey(region.getX(), region.getZ()));
+        }
+        if (!pinnedRegions.isEmpty())
+            writePinnedRegions();
+        if (!pinnedRegions.isEmpty()) {
+            // Reason the records are kept, or the changes of these regions are lost
+            manager.getLogger().error("Error writing {} regions of {}, the mutation journal is kept for the next time",
+                    pinnedRegions.size(), world);
+            return;
+        }
+        try {
+            MutationJournal.deleteSegments(getJournalDirectory());
+        } catch (IOException e) {
+            manager.getLogger().error("Error deleting the mutation journal of {}", world, e);
+        }
+    }
+
+    /**
+     * Write the regions failed to write before, with their records in the closed journal applied again.
+     * The records of a region loaded again are applied over it, which is fine as they are in the order of the
+     * changes, also the changes made after loaded again.
+     */
+    private void writePinnedRegions() {
+        Set<Long> pinned = new HashSet<>(pinnedRegions);
+        Set<Long> loaded = new HashSet<>();
+        synchronized (this) {
+            for (long key : pinned) {
+                if (loadedRegions.containsKey(key))
+                    loaded.add(key);
+            }
+        }
+        int[] skipped = new int[1];
+        boolean replayed;
+        try {
+            replayed = replayRecords(getJournalDirectory(), pinned, skipped) >= 0 && skipped[0] == 0;
+        } catch (IOException | RuntimeException e) {
+            manager.getLogger().error("Error replaying the mutation journal of {}", world, e);
+            replayed = false;
+        }
+        pinnedRegions.removeAll(pinned);
+        for (long key : pinned) {
+            int x = (int) (key >> 32);
+            int z = (int) key;
+            if (loaded.contains(key)) {
+                LoadedRegionData<W> region = getRegion(x, z);
+                if (region == null)
+                    continue;
+                region.write();
+                if (region.isDirty())
+                    pinnedRegions.add(key);
+            } else {
+                unloadRegion(x, z); // Loaded by the replay only, pinned again if failed to write
+            }
+        }
+        if (!replayed) // Written with some records missing, so the records are still needed
+            pinnedRegions.addAll(pinned);
+    }
+
+    private File getJournalDirectory() {
+        return new File(baseDirectory, "journal");
+    }
+
     /**
      * Get the height of this world.
      *
@@ -321,12 +1345,79 @@ public class WorldRegionDataManager<W> {
     }
 
     /**
-     * Get all loaded regions.
+     * Get all loaded regions. The returned map is a read-only copy, changes of loaded regions are not reflected.
      *
      * @return Loaded regions, <code>Map(X pos, Map(Y pos, Data))</code>
      */
     public Map<Integer, Map<Integer, LoadedRegionData<W>>> getLoadedRegions() {
-        return loadedRegions;
+        Map<Integer, Map<Integer, LoadedRegionData<W>>> regions = new HashMap<>();
+        synchronized (this) {
+            loadedRegions.forEachValue((region) ->
+                    regions.computeIfAbsent(region.getX(), (x) -> new HashMap<>()).put(region.getZ(), region));
+        }
+        regions.replaceAll((x, xRegions) -> Collections.unmodifiableMap(xRegions));
+        return Collections.unmodifiableMap(regions);
+    }
+
+    /**
+     * Get the count of loaded regions.
+     *
+     * @return The count
+     */
+    public int getLoadedRegionCount() {
+        synchronized (this) {
+            return loadedRegions.size();
+        }
+    }
+
+    /**
+     * Get how many loaded regions are changed and not saved.
+     *
+     * @return The count
+     */
+    public int getDirtyRegionCount() {
+        int[] count = new int[1];
+        synchronized (this) {
+            loadedRegions.forEachValue((region) -> {
+                if (region.isDirty())
+                    count[0]++;
+            });
+        }
+        return count[0];
+    }
+
+    /**
+     * Get how many regions with no chunks in using are kept loaded.
+     *
+     * @return The count
+     * @see RegionDataManager#setIdleRegionLimits(int, long)
+     */
+    public int getIdleRegionCount() {
+        synchronized (this) {
+            return idleRegions.size();
+        }
+    }
+
+    /**
+     * Get how many bytes the idle regions take, estimated.
+     *
+     * @return The bytes
+     */
+    public long getIdleRegionBytes() {
+        synchronized (this) {
+            return idleRegionBytes;
+        }
+    }
+
+    /**
+     * Get how many regions are loading in background.
+     *
+     * @return The count
+     */
+    public int getLoadingRegionCount() {
+        synchronized (this) {
+            return pendingLoads.size();
+        }
     }
 
     /**
@@ -338,4 +1429,32 @@ public class WorldRegionDataManager<W> {
         return world;
     }
 
+    /**
+     * A region with no chunks in using but kept loaded.
+     *
+     * @param <W> The type of <code>World</code>
+     */
+    private static final class IdleRegion<W> {
+
+        private final LoadedRegionData<W> region;
+        private final long size;
+
+        private IdleRegion(LoadedRegionData<W> region, long size) {
+            this.region = region;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * A region loading in background with the actions waiting for it.
+     */
+    private static final class PendingRegionLoad<W> {
+
+        private final CompletableFuture<LoadedRegionData<W>> future = new CompletableFuture<>();
+        private final List<Consumer<LoadedRegionData<W>>> actions = new ArrayList<>();
+        private int mutations; // Of the actions, the changes to blocks, dropped if the load failed
+
+    }
+
 }
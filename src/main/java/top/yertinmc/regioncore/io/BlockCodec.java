@@ -0,0 +1,71 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * The codec of block data. A block data is encoded straight into the output of its layer, and decoded from the bytes
+ * of that block only. The length of the bytes is saved by the layer.
+ *
+ * @param <T> The type of block data
+ * @see LayerData
+ */
+public interface BlockCodec<T> {
+
+    /**
+     * Make a codec of a serializer and a deserializer working on byte arrays.
+     *
+     * @param serializer   The serializer
+     * @param deserializer The deserializer
+     * @return The codec
+     */
+    static BlockCodec<Object> of(@NotNull Function<Object, byte[]> serializer,
+                                 @NotNull Function<byte[], Object> deserializer) {
+        return new BlockCodec<Object>() {
+
+            @Override
+            public void encode(Object value, DataOutput out) throws IOException {
+                out.write(serializer.apply(value));
+            }
+
+            @Override
+            public Object decode(ByteBuffer data) {
+                if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                        && data.remaining() == data.array().length)
+                    return deserializer.apply(data.array()); // Not copied if the whole array
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                return deserializer.apply(bytes);
+            }
+
+        };
+    }
+
+    /**
+     * Encode a block data.
+     *
+     * @param value The data, not null
+     * @param out   The output
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    /**
+     * Decode a block data.
+     *
+     * @param data The bytes of the block data only
+     * @return The data
+     */
+    T decode(ByteBuffer data);
+
+    /**
+     * Make the state the encoded bytes rely on durable, e.g. a dictionary of the values encoded.
+     * Called after encoding and before the encoded bytes are written, to region files or to the journal.
+     */
+    default void sync() throws IOException {
+    }
+
+}
@@ -0,0 +1,230 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compression of the chunks in region files. Every chunk is compressed alone, so a chunk can still be read or
+ * rewritten without the others. The id is saved before every chunk and in the header of region files.
+ * Compressions must be registered to be read, the built-in compressions are always registered.
+ *
+ * @see RegionFile
+ */
+public abstract class ChunkCompression {
+
+    /**
+     * The id of uncompressed chunks.
+     */
+    public static final byte ID_NONE = RegionFile.COMPRESSION_NONE;
+
+    /**
+     * The id of deflate compressed chunks.
+     */
+    public static final byte ID_DEFLATE = 1;
+
+    /**
+     * No compression.
+     */
+    public static final ChunkCompression NONE = new None();
+
+    private static final Map<Byte, ChunkCompression> REGISTRY = new ConcurrentHashMap<>();
+
+    static {
+        register(NONE);
+        register(deflate());
+    }
+
+    private final byte id;
+
+    protected ChunkCompression(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * Deflate compression from the JDK with the default level.
+     *
+     * @return The compression
+     */
+    public static ChunkCompression deflate() {
+        return deflate(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Deflate compression from the JDK.
+     *
+     * @param level The level, 0 to 9, or -1 for the default
+     * @return The compression
+     * @see Deflater#setLevel(int)
+     */
+    public static ChunkCompression deflate(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Illegal deflate level " + level);
+        return new Deflate(level);
+    }
+
+    /**
+     * Register a compression for reading chunks with its id.
+     * Any compression with the id reads the chunks, so a compression with another level needs no registering.
+     *
+     * @param compression The compression
+     */
+    public static void register(@NotNull ChunkCompression compression) {
+        ChunkCompression old = REGISTRY.putIfAbsent(compression.getId(), compression);
+        if (old != null && old.getClass() != compression.getClass())
+            throw new IllegalArgumentException("Chunk compression id " + compression.getId() + " is used by " + old);
+    }
+
+    /**
+     * Get a registered compression.
+     *
+     * @param id The id
+     * @return The compression, or null if not registered
+     */
+    public static @Nullable ChunkCompression byId(byte id) {
+        return REGISTRY.get(id);
+    }
+
+    /**
+     * Get the id saved with the chunks.
+     *
+     * @return The id
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Compress the remaining bytes of a chunk. The position of the buffer is not changed.
+     *
+     * @param data The chunk data
+     * @return The compressed data
+     */
+    public abstract ByteBuffer compress(ByteBuffer data) throws IOException;
+
+    /**
+     * Decompress the remaining bytes of a chunk.
+     *
+     * @param data The compressed data
+     * @return The chunk data
+     */
+    public abstract ByteBuffer decompress(ByteBuffer data) throws IOException;
+
+    private static byte[] array(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Chunks saved as is.
+     */
+    private static final class None extends ChunkCompression {
+
+        private None() {
+            super(ID_NONE);
+        }
+
+        @Override
+        public ByteBuffer compress(ByteBuffer data) {
+            return data.duplicate();
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) {
+            return data.slice();
+        }
+
+        @Override
+        public String toString() {
+            return "none";
+        }
+
+    }
+
+    /**
+     * Deflate with the length of the chunk data before the compressed data.
+     * <pre>
+     * int   length of the chunk data
+     * ...   zlib stream
+     * </pre>
+     * Deflaters and inflaters are kept for each thread.
+     */
+    private static final class Deflate extends ChunkCompression {
+
+        private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+        private final int level;
+        private final ThreadLocal<Deflater> deflaters;
+
+        private Deflate(int level) {
+            super(ID_DEFLATE);
+            this.level = level;
+            this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        @Override
+        public ByteBuffer compress(ByteBuffer data) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            int length = data.remaining();
+            if (data.hasArray()) {
+                deflater.setInput(data.array(), data.arrayOffset() + data.position(), length);
+            } else {
+                deflater.setInput(array(data));
+            }
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length / 2 + Integer.BYTES)];
+            int count = Integer.BYTES;
+            while (!deflater.finished()) {
+                if (count == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                count += deflater.deflate(out, count, out.length - count);
+            }
+            ByteBuffer.wrap(out).putInt(length);
+            return ByteBuffer.wrap(out, 0, count);
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) throws IOException {
+            int length = data.getInt();
+            if (length < 0)
+                throw new IOException("Illegal chunk length " + length);
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            if (data.hasArray()) {
+                inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                inflater.setInput(array(data));
+            }
+            byte[] out = new byte[length];
+            int count = 0;
+            try {
+                while (count < length) {
+                    int inflated = inflater.inflate(out, count, length - count);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Unexpected end of compressed chunk");
+                    count += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted compressed chunk", e);
+            }
+            return ByteBuffer.wrap(out);
+        }
+
+        @Override
+        public String toString() {
+            return "deflate(" + level + ")";
+        }
+
+    }
+
+}
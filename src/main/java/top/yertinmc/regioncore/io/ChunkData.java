@@ -6,6 +6,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * The chunk data. A set of <code>LayerData</code>
@@ -19,7 +20,12 @@ public class ChunkData {
     final RegionData region;
     private @Nullable
     final LayerData[] layers;
-    private boolean using;
+    private int blockCount; // Blocks with data in all the layers
+    private volatile boolean using;
+    private @Nullable ByteBuffer encoded;
+    private int modifications;
+    private @Nullable ChunkData origin;
+    private int originModifications;
 
     public ChunkData(RegionData region) {
         this.region = region;
@@ -27,37 +33,159 @@ public class ChunkData {
     }
 
     /**
-     * Is this chunk no data?
+     * Is this chunk without any block data? The count is kept, so this does not scan the layers.
+     * An empty chunk is removed from its region as soon as it becomes empty.
      *
      * @return TRUE if empty
      */
     public boolean isEmpty() {
+        return blockCount == 0;
+    }
+
+    /**
+     * How many blocks in this chunk have data?
+     *
+     * @return The count
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Count a block set in a layer, and remove the layer if it becomes empty, and this chunk if it becomes empty.
+     *
+     * @param layer      The layer
+     * @param y          The Y position of the layer, or -1 to search for it
+     * @param chunkIndex The index of this chunk in its region, or -1 to search for it
+     * @param delta      The change of the count of blocks with data
+     * @see LayerData#setBlock(int, int, Object, int, int)
+     */
+    void layerChanged(LayerData layer, int y, int chunkIndex, int delta) {
+        blockCount += delta;
+        if (layer.isEmpty()) {
+            if (y >= 0) {
+                if (layers[y] == layer)
+                    layers[y] = null;
+            } else {
+                for (int i = 0; i < layers.length; i++) {
+                    if (layers[i] == layer) {
+                        layers[i] = null;
+                        break;
+                    }
+                }
+            }
+        }
+        if (blockCount == 0)
+            region.removeChunk(this, chunkIndex);
+    }
+
+    /**
+     * Estimate how many bytes of memory this chunk takes, with the bytes kept since read or saved.
+     *
+     * @return The bytes
+     */
+    public long estimateSize() {
+        long size = (long) layers.length * Integer.BYTES;
         for (LayerData layer : layers) {
-            if (layer != null && layer.isEmpty())
-                return true;
+            if (layer != null)
+                size += layer.estimateSize();
         }
-        return false;
+        if (encoded != null)
+            size += encoded.remaining();
+        return size;
     }
 
     /**
      * Serialize this chunk.
+     * If not changed since read or saved, the bytes read or saved are copied without serializing the layers.
      *
      * @param os The output stream
      */
     public void write(DataOutputStream os) throws IOException {
+        if (encoded != null) {
+            EncodeBuffer.writeBuffer(os, encoded);
+            return;
+        }
         for (int i = 0; i < layers.length; i++) {
             LayerData layer = layers[i];
-            if (layer != null && layer.isEmpty()) {
-                os.writeBoolean(true);
-                layer.write(os);
+            if (layer != null && !layer.isEmpty()) {
+                layer.write(os); // Starts with the tag of the layer
             } else {
-                if (layer != null) // Empty
-                    layers[i] = null;
-                os.writeBoolean(false);
+                os.writeByte(LayerData.TAG_EMPTY);
             }
         }
     }
 
+    /**
+     * Copy this chunk to another region. The block values are shared.
+     *
+     * @param region The region with the copy
+     * @return The copy
+     * @see RegionData#snapshot()
+     */
+    public ChunkData copy(RegionData region) {
+        ChunkData copy = new ChunkData(region);
+        for (int i = 0; i < layers.length; i++) {
+            LayerData layer = layers[i];
+            if (layer != null)
+                copy.layers[i] = layer.copy(copy);
+        }
+        copy.blockCount = blockCount;
+        copy.encoded = encoded;
+        copy.origin = this;
+        copy.originModifications = modifications;
+        return copy;
+    }
+
+    /**
+     * Give the bytes saved from this copy back to the chunk copied from, if that chunk not changed since copied.
+     * Then that chunk will not be serialized again until changed.
+     *
+     * @see ChunkData#copy(RegionData)
+     */
+    public void publishEncoded() {
+        if (origin != null && encoded != null && origin.modifications == originModifications)
+            origin.encoded = encoded;
+    }
+
+    /**
+     * Mark this chunk changed. The layers will be serialized on next save.
+     *
+     * @see ChunkData#isDirty()
+     */
+    public void markDirty() {
+        encoded = null;
+        modifications++;
+    }
+
+    /**
+     * Is this chunk changed since read or saved?
+     *
+     * @return TRUE if changed
+     * @see ChunkData#markDirty()
+     */
+    public boolean isDirty() {
+        return encoded == null;
+    }
+
+    /**
+     * Get the bytes of this chunk read or saved.
+     *
+     * @return The bytes, or null if changed since read or saved
+     */
+    public @Nullable ByteBuffer getEncoded() {
+        return encoded == null ? null : encoded.duplicate();
+    }
+
+    /**
+     * Set the bytes of this chunk just saved.
+     *
+     * @param encoded The bytes, should not be changed after
+     */
+    public void setEncoded(@Nullable ByteBuffer encoded) {
+        this.encoded = encoded;
+    }
+
     /**
      * Deserialize a chunk.
      *
@@ -68,7 +196,7 @@ public class ChunkData {
         ChunkData data = new ChunkData(region);
         for (int i = 0; i < data.layers.length; i++) {
             if (is.readBoolean()) {
-                data.layers[i] = LayerData.read(data, is);
+                data.addReadLayer(i, LayerData.read(data, is));
             } else {
                 data.layers[i] = null;
             }
@@ -76,6 +204,40 @@ public class ChunkData {
         return data;
     }
 
+    /**
+     * Deserialize a chunk.
+     *
+     * @param region The region with the chunk
+     * @param buffer The buffer
+     */
+    public static ChunkData read(RegionData region, ByteBuffer buffer) throws IOException {
+        ChunkData data = new ChunkData(region);
+        int start = buffer.position();
+        for (int i = 0; i < data.layers.length; i++) {
+            if (buffer.get(buffer.position()) != LayerData.TAG_EMPTY) {
+                data.addReadLayer(i, LayerData.read(data, buffer));
+            } else {
+                buffer.get();
+                data.layers[i] = null;
+            }
+        }
+        data.encoded = slice(buffer, start);
+        return data;
+    }
+
+    private void addReadLayer(int y, LayerData layer) {
+        if (layer.isEmpty()) // Written by older versions
+            return;
+        layers[y] = layer;
+        blockCount += layer.getBlockCount();
+    }
+
+    static ByteBuffer slice(ByteBuffer buffer, int start) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start).limit(buffer.position());
+        return slice.slice().asReadOnlyBuffer();
+    }
+
     /**
      * Get a layer in this chunk.
      *
@@ -87,6 +249,7 @@ public class ChunkData {
 
     /**
      * Get an exists layer or initialize a new layer in this chunk.
+     * A new layer is empty until a block data is set in it, and is removed as soon as it becomes empty again.
      *
      * @return The layer
      */
@@ -102,7 +265,9 @@ public class ChunkData {
      *
      * @see ChunkData#isUsing
      * @see ChunkData#resetUsing
+     * @deprecated Chunks in using are tracked by the loaded region, this flag is not used
      */
+    @Deprecated
     public void markUsing() {
         using = true;
     }
@@ -112,7 +277,9 @@ public class ChunkData {
      *
      * @see ChunkData#isUsing
      * @see ChunkData#markUsing
+     * @deprecated Chunks in using are tracked by the loaded region, this flag is not used
      */
+    @Deprecated
     public void resetUsing() {
         using = false;
     }
@@ -141,7 +308,10 @@ public class ChunkData {
      * @return TRUE if using
      * @see ChunkData#markUsing
      * @see ChunkData#resetUsing
+     * @deprecated Chunks in using are tracked by the loaded region, use
+     * <code>LoadedRegionData#isChunkUsing</code>
      */
+    @Deprecated
     public boolean isUsing() {
         return using;
     }
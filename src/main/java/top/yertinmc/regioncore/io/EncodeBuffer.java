@@ -0,0 +1,116 @@
+package top.yertinmc.regioncore.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A byte array output stream exposing its buffer, to be pooled per thread.
+ */
+public final class EncodeBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Buffers larger than this will not be kept in a pool.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private DataOutputStream dataOutput;
+
+    public EncodeBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Create a pool of buffers, a buffer for each thread.
+     *
+     * @param size The initial size of buffers
+     * @return The pool
+     */
+    public static ThreadLocal<EncodeBuffer> newPool(int size) {
+        return ThreadLocal.withInitial(() -> new EncodeBuffer(size));
+    }
+
+    /**
+     * Get the buffer of this thread from a pool and reset it.
+     *
+     * @param pool The pool
+     * @return The buffer
+     */
+    public static EncodeBuffer acquire(ThreadLocal<EncodeBuffer> pool) {
+        EncodeBuffer buffer = pool.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Give back the buffer of this thread to a pool. The buffer is dropped if grown too large.
+     *
+     * @param pool The pool
+     */
+    public static void release(ThreadLocal<EncodeBuffer> pool) {
+        if (pool.get().buf.length > MAX_POOLED_BUFFER_SIZE)
+            pool.remove();
+    }
+
+    /**
+     * Get a data output stream writing to this buffer, kept with this buffer.
+     *
+     * @return The stream
+     */
+    public DataOutputStream dataOutput() {
+        if (dataOutput == null)
+            dataOutput = new DataOutputStream(this);
+        return dataOutput;
+    }
+
+    /**
+     * Copy a part of the written bytes.
+     *
+     * @param from The start index, inclusive
+     * @param to   The end index, exclusive
+     * @return The buffer with copied bytes
+     */
+    public ByteBuffer copy(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        System.arraycopy(buf, from, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Write the remaining bytes of a buffer to a stream. The position of the buffer is not changed.
+     *
+     * @param os     The output stream
+     * @param buffer The buffer
+     */
+    public static void writeBuffer(DataOutputStream os, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Wrap the written bytes. The bytes are not copied.
+     *
+     * @return The buffer
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Wrap a part of the written bytes. The bytes are not copied.
+     *
+     * @param from The start index, inclusive
+     * @param to   The end index, exclusive
+     * @return The buffer
+     */
+    public ByteBuffer slice(int from, int to) {
+        return ByteBuffer.wrap(buf, from, to - from).slice();
+    }
+
+}
@@ -0,0 +1,76 @@
+package top.yertinmc.regioncore.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A layer storage with a value slot for every block.
+ * <pre>
+ * byte  tag, LayerData#TAG_FLAT
+ * For every block:
+ *   short length of the data, 0 for null
+ *   ...   data
+ * </pre>
+ */
+final class FlatLayerStorage extends LayerStorage {
+
+    private final Object[] data;
+
+    FlatLayerStorage(Object[] data) {
+        this.data = data;
+    }
+
+    @Override
+    Object get(int index) {
+        return data[index];
+    }
+
+    @Override
+    boolean set(int index, Object value) {
+        data[index] = value;
+        return true;
+    }
+
+    @Override
+    void setDeserialized(int index, Object value) {
+        data[index] = value;
+    }
+
+    @Override
+    int count() {
+        int count = 0;
+        for (Object datum : data) {
+            if (datum != null)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    LayerStorage copy() {
+        return new FlatLayerStorage(data.clone());
+    }
+
+    @Override
+    Object[] toArray() {
+        return data.clone();
+    }
+
+    /**
+     * Get the slots, not copied.
+     *
+     * @return The slots
+     */
+    Object[] getData() {
+        return data;
+    }
+
+    @Override
+    void write(LayerData layer, DataOutputStream os) throws IOException {
+        os.writeByte(LayerData.TAG_FLAT);
+        for (Object datum : data) {
+            layer.writeDatum(os, datum);
+        }
+    }
+
+}
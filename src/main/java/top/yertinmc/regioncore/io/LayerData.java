@@ -2,24 +2,117 @@ package top.yertinmc.regioncore.io;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import top.yertinmc.regioncore.RegionDataDefinition;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A layer of data.
+ * The blocks of a nearly empty layer are stored sparsely. When more blocks are set, they are stored in a palette
+ * while there are only a few distinct values, else in a flat array. Layers are changed back when saved.
+ * A serialized layer starts with a tag of its storage.
+ * If the definition keeps block data off heap, all the layers are off heap, see <code>OffHeapLayerStorage</code>.
+ *
+ * @see SparseLayerStorage
+ * @see PaletteLayerStorage
+ * @see FlatLayerStorage
  */
 @SuppressWarnings("unused")
 public class LayerData {
 
+    /**
+     * Tag of an empty layer, only written by the chunk.
+     */
+    public static final byte TAG_EMPTY = 0;
+
+    /**
+     * Tag of a flat layer. Same as the boolean before a layer in older files.
+     */
+    public static final byte TAG_FLAT = 1;
+
+    /**
+     * Tag of a palette layer.
+     */
+    public static final byte TAG_PALETTE = 2;
+
+    /**
+     * Tag of a sparse layer.
+     */
+    public static final byte TAG_SPARSE = 3;
+
+    /**
+     * Returned by <code>peekBlock</code> for blocks with data off heap, which is decoded by <code>getBlock</code>
+     * without changing the layer, so it can be got with the region locked for reading.
+     *
+     * @see RegionDataDefinition#offHeap
+     */
+    public static final Object OFF_HEAP = new Object();
+
+    /**
+     * A layer is sparse while at most 1 / <code>SPARSE_DIVISOR</code> of its blocks having values.
+     * It changes back to sparse when saved with half of that.
+     */
+    private static final int SPARSE_DIVISOR = 8;
+
+    private static final int ESTIMATED_LAYER_SIZE = 64;
+    private static final int ESTIMATED_BLOCK_SIZE = 32;
+
+    private static final ThreadLocal<EncodeBuffer> DATUM_BUFFERS = EncodeBuffer.newPool(256);
+
     private final ChunkData chunk;
-    private final Object[] data;
+    private LayerStorage storage;
+    private int blockCount; // Blocks with data
+    private @Nullable ByteBuffer encoded;
 
     public LayerData(ChunkData chunk) {
         this.chunk = chunk;
-        this.data = new Object[chunk.getRegion().getManager().getLayerBlockCount()];
+        int blockCount = chunk.getRegion().getManager().getLayerBlockCount();
+        int maxSparseSize = maxSparseSize(blockCount);
+        int maxPaletteSize = getDefinition().maxPaletteSize;
+        PayloadArena arena = chunk.getRegion().getArena();
+        if (arena != null)
+            this.storage = new OffHeapLayerStorage(arena, getDefinition().codec, blockCount, maxSparseSize);
+        else if (maxSparseSize > 0)
+            this.storage = new SparseLayerStorage(blockCount, maxSparseSize);
+        else if (maxPaletteSize > 0)
+            this.storage = new PaletteLayerStorage(blockCount, maxPaletteSize);
+        else
+            this.storage = new FlatLayerStorage(new Object[blockCount]);
+    }
+
+    private LayerData(ChunkData chunk, LayerStorage storage, int blockCount) {
+        this.chunk = chunk;
+        this.storage = storage;
+        this.blockCount = blockCount;
+    }
+
+    /**
+     * Make a layer with the values read, moved off heap if the region keeps block data off heap.
+     * A palette read with palettes disabled is changed to a flat array, so the blocks are deserialized one by one.
+     */
+    private static LayerData ofRead(ChunkData chunk, LayerStorage storage) {
+        PayloadArena arena = chunk.getRegion().getArena();
+        if (storage instanceof PaletteLayerStorage
+                && chunk.getRegion().getManager().getManager().getDefinition().maxPaletteSize == 0)
+            storage = new FlatLayerStorage(storage.toArray());
+        if (arena != null) {
+            int blockCount = chunk.getRegion().getManager().getLayerBlockCount();
+            storage = OffHeapLayerStorage.of(arena, chunk.getRegion().getManager().getManager().getDefinition().codec,
+                    storage.toArray(), maxSparseSize(blockCount));
+        }
+        return new LayerData(chunk, storage, storage.count());
+    }
+
+    private static int maxSparseSize(int blockCount) {
+        return blockCount > SparseLayerStorage.MAX_BLOCK_COUNT ? 0 : blockCount / SPARSE_DIVISOR;
+    }
+
+    private RegionDataDefinition<?> getDefinition() {
+        return chunk.getRegion().getManager().getManager().getDefinition();
     }
 
     /**
@@ -35,40 +128,128 @@ public class LayerData {
     }
 
     /**
-     * Serialize this layer.
+     * Serialize this layer with its tag.
+     * If not changed since read, the bytes read are copied without serializing the blocks.
+     * A layer with few blocks left is changed to sparse first, and a flat layer with few distinct values left is
+     * changed to a palette.
      *
      * @param os The output stream
      */
     public void write(DataOutputStream os) throws IOException {
-        for (Object datum : data) {
-            if (datum != null) {
-                byte[] bytes;
-                if (datum instanceof byte[]) {
-                    bytes = (byte[]) datum;
-                } else {
-                    bytes = getChunk().getRegion().getManager().getManager().getDefinition().dataSerializer.apply(datum);
-                }
-                if (bytes.length > Short.MAX_VALUE)
+        if (encoded != null) { // Not changed since read
+            EncodeBuffer.writeBuffer(os, encoded);
+            return;
+        }
+        shrink();
+        storage.write(this, os);
+    }
+
+    /**
+     * Serialize a block data.
+     *
+     * @param os    The output stream
+     * @param datum The data, may be a byte array not deserialized or null
+     */
+    void writeDatum(DataOutputStream os, @Nullable Object datum) throws IOException {
+        if (datum == null) {
+            os.writeShort(0);
+        } else if (datum instanceof byte[]) { // Not deserialized since read
+            byte[] bytes = (byte[]) datum;
+            if (bytes.length > Short.MAX_VALUE)
+                throw new UnsupportedOperationException("Block data too large.");
+            os.writeShort(bytes.length);
+            os.write(bytes);
+        } else {
+            // Encoded into a buffer of this thread to know the length first, without a byte array for each block
+            EncodeBuffer buffer = EncodeBuffer.acquire(DATUM_BUFFERS);
+            try {
+                getDefinition().codec.encode(datum, buffer.dataOutput());
+                if (buffer.size() > Short.MAX_VALUE)
                     throw new UnsupportedOperationException("Block data too large.");
-                os.writeShort(bytes.length);
-                os.writeBytes(new String(bytes));
-            } else {
-                os.writeShort(0);
+                os.writeShort(buffer.size());
+                buffer.writeTo(os);
+            } finally {
+                EncodeBuffer.release(DATUM_BUFFERS);
+            }
+        }
+    }
+
+    /**
+     * Change to a smaller storage if possible.
+     */
+    private void shrink() {
+        if (storage instanceof SparseLayerStorage || storage instanceof OffHeapLayerStorage)
+            return;
+        int maxSparseSize = maxSparseSize(chunk.getRegion().getManager().getLayerBlockCount());
+        if (maxSparseSize > 0 && blockCount <= maxSparseSize / 2) {
+            LayerStorage sparse = SparseLayerStorage.of(storage.toArray(), maxSparseSize);
+            if (sparse != null) {
+                storage = sparse;
+                return;
+            }
+        }
+        int maxPaletteSize = getDefinition().maxPaletteSize;
+        if (maxPaletteSize > 0 && storage instanceof FlatLayerStorage) {
+            LayerStorage palette = PaletteLayerStorage.of(((FlatLayerStorage) storage).getData(), maxPaletteSize);
+            if (palette != null)
+                storage = palette;
+        }
+    }
+
+    /**
+     * Change to a larger storage, for a value the storage can not hold.
+     * A sparse layer changes to a palette if possible, else to a flat array.
+     */
+    private void grow() {
+        Object[] blocks = storage.toArray();
+        int maxPaletteSize = getDefinition().maxPaletteSize;
+        if (storage instanceof SparseLayerStorage && maxPaletteSize > 0) {
+            LayerStorage palette = PaletteLayerStorage.of(blocks, maxPaletteSize);
+            if (palette != null) {
+                storage = palette;
+                return;
             }
         }
+        storage = new FlatLayerStorage(blocks);
     }
 
     /**
-     * Is this layer empty?
+     * Estimate how many bytes of memory this layer takes, by how many blocks have values.
+     *
+     * @return The bytes
+     */
+    public long estimateSize() {
+        if (storage instanceof OffHeapLayerStorage) // Only the table of addresses, the arena is of the region
+            return ESTIMATED_LAYER_SIZE + (long) chunk.getRegion().getManager().getLayerBlockCount() * Integer.BYTES;
+        return ESTIMATED_LAYER_SIZE + (long) blockCount * ESTIMATED_BLOCK_SIZE;
+    }
+
+    /**
+     * Is this layer changed since read?
+     *
+     * @return TRUE if changed
+     */
+    public boolean isDirty() {
+        return encoded == null;
+    }
+
+    /**
+     * Is this layer without any block data? The count is kept, so this does not scan the blocks.
+     * An empty layer is removed from its chunk as soon as it becomes empty.
      *
      * @return TRUE if empty
      */
     public boolean isEmpty() {
-        for (Object datum : data) {
-            if (datum != null)
-                return true;
-        }
-        return false;
+        return blockCount == 0;
+    }
+
+    /**
+     * How many blocks in this layer have data?
+     *
+     * @return The count
+     */
+    public int getBlockCount() {
+        return blockCount;
     }
 
     /**
@@ -80,28 +261,87 @@ public class LayerData {
      */
     public Object getBlock(int x, int z) {
         int index = getIndex(x, z);
-        Object datum = data[index];
+        if (storage instanceof OffHeapLayerStorage)
+            return ((OffHeapLayerStorage) storage).decode(index);
+        Object datum = storage.get(index);
         if (datum == null)
             return null;
         if (datum instanceof byte[]) {
-            data[index] = chunk.getRegion().getManager().getManager().getDefinition().dataDeserializer.apply((byte[]) datum);
-            return data[index];
+            datum = getDefinition().codec.decode(ByteBuffer.wrap((byte[]) datum));
+            storage.setDeserialized(index, datum);
+            return datum;
         } else {
             return datum;
         }
     }
 
+    /**
+     * Get a block data in this layer without deserializing.
+     *
+     * @param x The X position of the block
+     * @param z The Z position of the block
+     * @return The data, may be a byte array not deserialized, or <code>OFF_HEAP</code>
+     * @see LayerData#OFF_HEAP
+     */
+    public Object peekBlock(int x, int z) {
+        return storage.get(getIndex(x, z));
+    }
+
     /**
      * Set a block data in this layer.
      *
      * @param x    The X position of the block
      * @param z    The Z position of the block
      * @param data The data
+     * @return TRUE if the block changed, this layer and its chunk are only marked dirty then
      */
-    public void setBlock(int x, int z, Object data) {
-        if (data != null && getChunk().getRegion().getManager().getManager().getDefinition().dataIsEmpty.apply(data))
+    public boolean setBlock(int x, int z, Object data) {
+        return setBlock(x, z, data, -1, -1);
+    }
+
+    /**
+     * Set a block data in this layer, with the position of this layer known, so this layer and its chunk are removed
+     * without searching for them if they become empty.
+     *
+     * @param x          The X position of the block
+     * @param z          The Z position of the block
+     * @param data       The data
+     * @param y          The Y position of this layer in its chunk, or -1 if not known
+     * @param chunkIndex The index of the chunk in its region, or -1 if not known
+     * @return TRUE if the block changed, this layer and its chunk are only marked dirty then
+     * @see RegionData#getIndex(int, int)
+     */
+    public boolean setBlock(int x, int z, Object data, int y, int chunkIndex) {
+        if (data != null && getDefinition().dataIsEmpty.apply(data))
             data = null;
-        this.data[getIndex(x, z)] = data;
+        int index = getIndex(x, z);
+        Object old = storage.get(index);
+        if (old == data) {
+            if (isEmpty()) // Just created for an empty data, removed again
+                chunk.layerChanged(this, y, chunkIndex, 0);
+            return false;
+        }
+        int delta = (data == null ? 0 : 1) - (old == null ? 0 : 1);
+        while (!storage.set(index, data)) // Too many blocks or distinct values, a flat array holds any
+            grow();
+        blockCount += delta;
+        encoded = null;
+        chunk.markDirty();
+        chunk.layerChanged(this, y, chunkIndex, delta);
+        return true;
+    }
+
+    /**
+     * Copy this layer to another chunk. The block values are shared.
+     *
+     * @param chunk The chunk with the copy
+     * @return The copy
+     * @see RegionData#snapshot()
+     */
+    public LayerData copy(ChunkData chunk) {
+        LayerData copy = new LayerData(chunk, storage.copy(), blockCount);
+        copy.encoded = encoded;
+        return copy;
     }
 
     /**
@@ -111,21 +351,74 @@ public class LayerData {
      * @param is    The input stream
      */
     public static LayerData read(ChunkData chunk, DataInputStream is) throws IOException {
-        LayerData data = new LayerData(chunk);
-        for (int i = 0; i < data.data.length; i++) {
+        Object[] blocks = new Object[chunk.getRegion().getManager().getLayerBlockCount()];
+        for (int i = 0; i < blocks.length; i++) {
             short size = is.readShort();
             if (size == 0) {
-                data.data[i] = null;
+                blocks[i] = null;
             } else {
+                if (size < 0)
+                    throw new IOException("Illegal block data size " + size);
                 byte[] buf = new byte[size];
-                if (is.read(buf, 0, size) != size)
-                    throw new EOFException("Unexpected end of block data");
-                data.data[i] = buf;
+                is.readFully(buf);
+                blocks[i] = buf;
             }
         }
+        LayerData data = ofRead(chunk, new FlatLayerStorage(blocks));
+        data.shrink();
+        return data;
+    }
+
+    /**
+     * Deserialize a layer with its tag.
+     * The bytes read are kept, the storage is not changed until the layer changed.
+     *
+     * @param chunk  The chunk with this layer
+     * @param buffer The buffer
+     */
+    public static LayerData read(ChunkData chunk, ByteBuffer buffer) throws IOException {
+        int blockCount = chunk.getRegion().getManager().getLayerBlockCount();
+        int start = buffer.position();
+        byte tag = buffer.get();
+        LayerStorage storage;
+        switch (tag) {
+            case TAG_FLAT:
+                storage = readFlat(buffer, blockCount);
+                break;
+            case TAG_PALETTE:
+                storage = PaletteLayerStorage.read(buffer, blockCount,
+                        chunk.getRegion().getManager().getManager().getDefinition().maxPaletteSize);
+                break;
+            case TAG_SPARSE:
+                storage = SparseLayerStorage.read(buffer, blockCount, maxSparseSize(blockCount));
+                break;
+            default:
+                throw new IOException("Unknown layer storage " + tag);
+        }
+        LayerData data = ofRead(chunk, storage);
+        data.encoded = ChunkData.slice(buffer, start);
         return data;
     }
 
+    private static FlatLayerStorage readFlat(ByteBuffer buffer, int blockCount) throws IOException {
+        Object[] blocks = new Object[blockCount];
+        for (int i = 0; i < blocks.length; i++) {
+            short size = buffer.getShort();
+            if (size == 0) {
+                blocks[i] = null;
+            } else {
+                if (size < 0)
+                    throw new IOException("Illegal block data size " + size);
+                if (size > buffer.remaining())
+                    throw new EOFException("Unexpected end of block data");
+                byte[] buf = new byte[size];
+                buffer.get(buf);
+                blocks[i] = buf;
+            }
+        }
+        return new FlatLayerStorage(blocks);
+    }
+
     /**
      * Get the chunk with this layer.
      *
@@ -137,11 +430,15 @@ public class LayerData {
 
     /**
      * Get all data. Value may be deserialized value, a byte array or null.
+     * The array of a flat layer is returned directly, for other layers it is a copy. Data off heap is copied as
+     * byte arrays.
      *
      * @return The data
      */
     public @Nullable Object[] getData() {
-        return data;
+        if (storage instanceof FlatLayerStorage)
+            return ((FlatLayerStorage) storage).getData();
+        return storage.toArray();
     }
 
 }
@@ -0,0 +1,70 @@
+package top.yertinmc.regioncore.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The storage of the blocks in a layer.
+ * A value in a storage may be a deserialized value, a byte array not deserialized yet, or null.
+ * Storages off heap return <code>LayerData#OFF_HEAP</code> instead of the values.
+ *
+ * @see LayerData
+ */
+abstract class LayerStorage {
+
+    /**
+     * Get the value of a block.
+     *
+     * @param index The index of the block
+     * @return The value
+     */
+    abstract Object get(int index);
+
+    /**
+     * Set the value of a block.
+     *
+     * @param index The index of the block
+     * @param value The value
+     * @return FALSE if this storage can not hold the value, the layer should change to another storage
+     */
+    abstract boolean set(int index, Object value);
+
+    /**
+     * Replace a byte array value with the deserialized value.
+     *
+     * @param index The index of the block
+     * @param value The deserialized value
+     */
+    abstract void setDeserialized(int index, Object value);
+
+    /**
+     * How many blocks with values in this storage?
+     * May scan all the blocks, the layer keeps the count after made.
+     *
+     * @return The count
+     */
+    abstract int count();
+
+    /**
+     * Copy this storage. The values are shared.
+     *
+     * @return The copy
+     */
+    abstract LayerStorage copy();
+
+    /**
+     * Copy all the values to an array.
+     *
+     * @return The values
+     */
+    abstract Object[] toArray();
+
+    /**
+     * Serialize this storage with its tag.
+     *
+     * @param layer The layer with this storage
+     * @param os    The output stream
+     */
+    abstract void write(LayerData layer, DataOutputStream os) throws IOException;
+
+}
@@ -0,0 +1,525 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the block changes of a world, so changes are durable without rewriting regions.
+ * Records are appended to a buffer, and every commit writes all the records appended meanwhile with one fsync.
+ * The journal is cut into segments. A segment is not needed after all the regions changed by its records are
+ * written, see <code>rotate()</code>. Records torn by a crash are found by their checksums and ignored on replay.
+ * <pre>
+ * For every segment, journal-&lt;number&gt;.log:
+ *   int   MAGIC
+ *   short VERSION
+ *   For every record:
+ *     int   length of the body
+ *     int   CRC32 of the body
+ *     byte  type, TYPE_SET or TYPE_FILL
+ *     int   X, Y, Z of the block, or of the min corner of the box if TYPE_FILL
+ *     int   X, Y, Z of the max corner of the box, if TYPE_FILL
+ *     byte  1 if with data, 0 if removed
+ *     ...   data encoded by the codec, to the end of the body
+ * </pre>
+ *
+ * @see top.yertinmc.regioncore.RegionDataManager#setJournal(boolean, long, long)
+ */
+public final class MutationJournal implements Closeable {
+
+    /**
+     * The magic number at the start of segments, "RCJL".
+     */
+    public static final int MAGIC = 0x52434A4C;
+
+    /**
+     * The current version of the format.
+     */
+    public static final short VERSION = 1;
+
+    /**
+     * The type of records setting a block.
+     */
+    public static final byte TYPE_SET = 1;
+
+    /**
+     * The type of records setting all the blocks in a box.
+     */
+    public static final byte TYPE_FILL = 2;
+
+    private static final int SEGMENT_HEADER_SIZE = 6;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final ThreadLocal<EncodeBuffer> RECORD_BUFFERS = EncodeBuffer.newPool(256);
+
+    private final File directory;
+    private final BlockCodec<Object> codec;
+    private final Object commitLock = new Object(); // Commits and rotations one by one
+    private EncodeBuffer pending = new EncodeBuffer(4096); // Guarded by this
+    private EncodeBuffer spare = new EncodeBuffer(4096); // Guarded by this
+    private long appended; // Guarded by this, bytes of all records appended since opened
+    private FileChannel channel; // Guarded by this
+    private long segment; // Guarded by this
+    private long segmentSize; // Guarded by this
+    private boolean closed; // Guarded by this
+    private long tornStart = -1; // Guarded by commitLock, where a failed write started if not cut off yet
+    private volatile long committed; // Bytes of all records written and synced since opened
+
+    /**
+     * Open a journal, appending to a new segment after the existing ones.
+     *
+     * @param directory The directory of the segments
+     * @param codec     The codec of block data
+     */
+    public MutationJournal(@NotNull File directory, @NotNull BlockCodec<Object> codec) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        long[] segments = listSegments(directory);
+        segment = segments.length == 0 ? 1 : segments[segments.length - 1] + 1;
+        channel = openSegment(segment);
+    }
+
+    /**
+     * Append a record of setting a block. The record is durable after committed.
+     *
+     * @param x    The X position of the block
+     * @param y    The Y position of the block
+     * @param z    The Z position of the block
+     * @param data The data set, null if removed
+     * @return The position to commit to
+     * @see MutationJournal#commit(long)
+     */
+    public long appendSet(int x, int y, int z, @Nullable Object data) throws IOException {
+        EncodeBuffer buffer = EncodeBuffer.acquire(RECORD_BUFFERS);
+        try {
+            DataOutputStream os = buffer.dataOutput();
+            os.writeByte(TYPE_SET);
+            os.writeInt(x);
+            os.writeInt(y);
+            os.writeInt(z);
+            writeData(os, data);
+            return append(buffer);
+        } finally {
+            EncodeBuffer.release(RECORD_BUFFERS);
+        }
+    }
+
+    /**
+     * Append a record of setting all the blocks in a box. The record is durable after committed.
+     *
+     * @param minX The min X position of the box
+     * @param minY The min Y position of the box
+     * @param minZ The min Z position of the box
+     * @param maxX The max X position of the box
+     * @param maxY The max Y position of the box
+     * @param maxZ The max Z position of the box
+     * @param data The data set, null if removed
+     * @return The position to commit to
+     * @see MutationJournal#commit(long)
+     */
+    public long appendFill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                           @Nullable Object data) throws IOException {
+        EncodeBuffer buffer = EncodeBuffer.acquire(RECORD_BUFFERS);
+        try {
+            DataOutputStream os = buffer.dataOutput();
+            os.writeByte(TYPE_FILL);
+            os.writeInt(minX);
+            os.writeInt(minY);
+            os.writeInt(minZ);
+            os.writeInt(maxX);
+            os.writeInt(maxY);
+            os.writeInt(maxZ);
+            writeData(os, data);
+            return append(buffer);
+        } finally {
+            EncodeBuffer.release(RECORD_BUFFERS);
+        }
+    }
+
+    private void writeData(DataOutputStream os, @Nullable Object data) throws IOException {
+        if (data == null) {
+            os.writeByte(0);
+        } else {
+            os.writeByte(1);
+            if (data instanceof byte[]) // Not deserialized since read, like LayerData#writeDatum
+                os.write((byte[]) data);
+            else
+                codec.encode(data, os);
+        }
+    }
+
+    private long append(EncodeBuffer body) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = body.toByteBuffer();
+        crc.update(bytes.array(), 0, body.size());
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Journal closed in " + directory);
+            DataOutputStream os = pending.dataOutput();
+            os.writeInt(body.size());
+            os.writeInt((int) crc.getValue());
+            body.writeTo(os);
+            appended += RECORD_HEADER_SIZE + body.size();
+            return appended;
+        }
+    }
+
+    /**
+     * Write and sync all the records appended so far.
+     *
+     * @see MutationJournal#commit(long)
+     */
+    public void commit() throws IOException {
+        long position;
+        synchronized (this) {
+            position = appended;
+        }
+        commit(position);
+    }
+
+    /**
+     * Write and sync the records appended until a position, with all the other records appended so far.
+     * Threads committing at the same time share a write: a thread finding its records written by another commit
+     * returns at once.
+     *
+     * @param position The position returned by appending
+     * @throws IOException If the records are not durable, they are written again by the next commit then
+     */
+    public void commit(long position) throws IOException {
+        if (committed >= position)
+            return;
+        synchronized (commitLock) {
+            commitLocked(position);
+        }
+    }
+
+    private void commitLocked(long position) throws IOException {
+        if (committed >= position)
+            return;
+        if (tornStart >= 0)
+            discardTornWrite();
+        EncodeBuffer batch;
+        FileChannel channel;
+        long batchEnd;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Journal closed in " + directory);
+            batch = pending;
+            pending = spare;
+            channel = this.channel;
+            batchEnd = appended;
+            segmentSize += batch.size();
+        }
+        long start = channel.position();
+        try {
+            codec.sync(); // The records appended have been encoded
+            ByteBuffer data = batch.toByteBuffer();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            // Not durable, the records are written again by the next commit, before the records appended meanwhile
+            synchronized (this) {
+                segmentSize -= batch.size();
+                pending.writeTo(batch);
+                pending.reset();
+                spare = pending;
+                pending = batch;
+            }
+            tornStart = start;
+            try {
+                discardTornWrite();
+            } catch (IOException e1) {
+                e.addSuppressed(e1);
+            }
+            throw e;
+        }
+        batch.reset();
+        synchronized (this) {
+            spare = batch;
+        }
+        committed = batchEnd;
+    }
+
+    /**
+     * Cut a failed write off the segment, as replaying a segment stops at a torn record and the records after it
+     * would be lost. If the segment can not be cut, the records go on in a new segment.
+     */
+    private void discardTornWrite() throws IOException {
+        synchronized (this) {
+            try {
+                channel.truncate(tornStart);
+                channel.position(tornStart);
+            } catch (IOException e) {
+                FileChannel next = openSegment(segment + 1);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The torn segment is only read by replaying
+                }
+                channel = next;
+                segment++;
+                segmentSize = 0;
+            }
+            tornStart = -1;
+        }
+    }
+
+    /**
+     * Commit the records, then start a new segment for the records appended after.
+     * The records in the old segments are not needed after all the changes made before rotating are written to
+     * region files, then the old segments can be deleted.
+     *
+     * @return The number of the new segment
+     * @see MutationJournal#deleteSegmentsBefore(long)
+     */
+    public long rotate() throws IOException {
+        synchronized (commitLock) {
+            long position;
+            synchronized (this) {
+                position = appended;
+            }
+            commitLocked(position);
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Journal closed in " + directory);
+                FileChannel next = openSegment(segment + 1);
+                channel.close();
+                channel = next;
+                segmentSize = 0;
+                return ++segment;
+            }
+        }
+    }
+
+    /**
+     * Delete the segments before a segment.
+     *
+     * @param segment The number of the first segment kept
+     */
+    public void deleteSegmentsBefore(long segment) throws IOException {
+        deleteSegmentsBefore(directory, segment);
+    }
+
+    /**
+     * Delete all the segments in a directory, after replayed.
+     *
+     * @param directory The directory of the segments
+     */
+    public static void deleteSegments(File directory) throws IOException {
+        deleteSegmentsBefore(directory, Long.MAX_VALUE);
+    }
+
+    private static void deleteSegmentsBefore(File directory, long segment) throws IOException {
+        for (long number : listSegments(directory)) {
+            if (number < segment)
+                Files.deleteIfExists(segmentFile(directory, number).toPath());
+        }
+    }
+
+    /**
+     * How many bytes of records in the current segment, committed or not?
+     *
+     * @return The bytes
+     */
+    public synchronized long getSegmentSize() {
+        return segmentSize + pending.size();
+    }
+
+    /**
+     * Commit the records and close the segment. The segments are kept for replaying, but the current segment is
+     * deleted if no records in it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            long position;
+            synchronized (this) {
+                if (closed)
+                    return;
+                position = appended;
+            }
+            try {
+                commitLocked(position);
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    channel.close();
+                    if (segmentSize == 0)
+                        Files.deleteIfExists(segmentFile(directory, segment).toPath());
+                }
+            }
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(segmentFile(directory, number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Replay the records in all the segments in a directory, in order.
+     * A segment is read until the first record torn by a crash.
+     *
+     * @param directory The directory of the segments
+     * @param codec     The codec of block data
+     * @param replayer  The actions for the records
+     * @return How many records replayed
+     */
+    public static int replay(File directory, BlockCodec<Object> codec, Replayer replayer) throws IOException {
+        int count = 0;
+        for (long number : listSegments(directory)) {
+            File file = segmentFile(directory, number);
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() < SEGMENT_HEADER_SIZE) // Created but the header not written
+                continue;
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a journal segment " + file);
+            short version = buffer.getShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported journal version " + version + " of " + file);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining())
+                    break;
+                crc.reset();
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                buffer.position(buffer.position() + length);
+                replayRecord(body, codec, replayer, file);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void replayRecord(ByteBuffer body, BlockCodec<Object> codec, Replayer replayer,
+                                     File file) throws IOException {
+        byte type = body.get();
+        switch (type) {
+            case TYPE_SET: {
+                int x = body.getInt();
+                int y = body.getInt();
+                int z = body.getInt();
+                replayer.set(x, y, z, readData(body, codec));
+                break;
+            }
+            case TYPE_FILL: {
+                int minX = body.getInt();
+                int minY = body.getInt();
+                int minZ = body.getInt();
+                int maxX = body.getInt();
+                int maxY = body.getInt();
+                int maxZ = body.getInt();
+                replayer.fill(minX, minY, minZ, maxX, maxY, maxZ, readData(body, codec));
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type + " in " + file);
+        }
+    }
+
+    private static @Nullable Object readData(ByteBuffer body, BlockCodec<Object> codec) {
+        return body.get() == 0 ? null : codec.decode(body.slice());
+    }
+
+    /**
+     * Is there any segment in a directory?
+     *
+     * @param directory The directory of the segments
+     * @return TRUE if any
+     */
+    public static boolean hasSegments(File directory) {
+        return listSegments(directory).length != 0;
+    }
+
+    private static long[] listSegments(File directory) {
+        String[] names = directory.list();
+        if (names == null)
+            return new long[0];
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                numbers[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException ignored) {
+                // Not a segment
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private static File segmentFile(File directory, long number) {
+        return new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * The actions for the records replayed.
+     *
+     * @see MutationJournal#replay(File, BlockCodec, Replayer)
+     */
+    public interface Replayer {
+
+        /**
+         * Set a block.
+         *
+         * @param x    The X position of the block
+         * @param y    The Y position of the block
+         * @param z    The Z position of the block
+         * @param data The data, null to remove
+         */
+        void set(int x, int y, int z, @Nullable Object data);
+
+        /**
+         * Set all the blocks in a box.
+         *
+         * @param minX The min X position of the box
+         * @param minY The min Y position of the box
+         * @param minZ The min Z position of the box
+         * @param maxX The max X position of the box
+         * @param maxY The max Y position of the box
+         * @param maxZ The max Z position of the box
+         * @param data The data, null to remove
+         */
+        void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, @Nullable Object data);
+
+    }
+
+}
@@ -0,0 +1,165 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A layer storage with the encoded values in the arena of the region, off the heap, by a table of addresses.
+ * Values are encoded when set and decoded every time got, so no value objects are kept on the heap.
+ * Saved as a sparse layer while few blocks having values, else as a flat layer.
+ *
+ * @see PayloadArena
+ * @see LayerData#OFF_HEAP
+ */
+final class OffHeapLayerStorage extends LayerStorage {
+
+    private static final ThreadLocal<EncodeBuffer> VALUE_BUFFERS = EncodeBuffer.newPool(256);
+
+    private final PayloadArena arena;
+    private final BlockCodec<Object> codec;
+    private final int[] addresses;
+    private final int maxSparseSize;
+    private int size;
+
+    /**
+     * Create an empty storage.
+     *
+     * @param arena         The arena of the region
+     * @param codec         The codec of block data
+     * @param blockCount    How many blocks in a layer
+     * @param maxSparseSize How many blocks with values are saved sparsely at most
+     */
+    OffHeapLayerStorage(PayloadArena arena, BlockCodec<Object> codec, int blockCount, int maxSparseSize) {
+        this.arena = arena;
+        this.codec = codec;
+        this.addresses = new int[blockCount];
+        this.maxSparseSize = maxSparseSize;
+    }
+
+    /**
+     * Move values into an off-heap storage.
+     *
+     * @param arena         The arena of the region
+     * @param codec         The codec of block data
+     * @param data          The values of all the blocks
+     * @param maxSparseSize How many blocks with values are saved sparsely at most
+     * @return The storage
+     */
+    static OffHeapLayerStorage of(PayloadArena arena, BlockCodec<Object> codec, Object[] data, int maxSparseSize) {
+        OffHeapLayerStorage storage = new OffHeapLayerStorage(arena, codec, data.length, maxSparseSize);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != null)
+                storage.set(i, data[i]);
+        }
+        return storage;
+    }
+
+    /**
+     * Decode the value of a block.
+     *
+     * @param index The index of the block
+     * @return The value, or null if no value
+     */
+    @Nullable Object decode(int index) {
+        int address = addresses[index];
+        if (address == 0)
+            return null;
+        ByteBuffer bytes = arena.read(address);
+        return bytes == null ? null : codec.decode(bytes);
+    }
+
+    @Override
+    Object get(int index) {
+        return addresses[index] == 0 ? null : LayerData.OFF_HEAP;
+    }
+
+    @Override
+    boolean set(int index, Object value) {
+        int address = 0;
+        if (value instanceof byte[]) { // Not deserialized since read
+            address = arena.allocate(ByteBuffer.wrap((byte[]) value));
+        } else if (value != null) {
+            EncodeBuffer buffer = EncodeBuffer.acquire(VALUE_BUFFERS);
+            try {
+                codec.encode(value, buffer.dataOutput());
+                address = arena.allocate(buffer.toByteBuffer());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                EncodeBuffer.release(VALUE_BUFFERS);
+            }
+        }
+        int old = addresses[index];
+        if (old != 0) {
+            arena.free(old);
+            size--;
+        }
+        addresses[index] = address;
+        if (address != 0)
+            size++;
+        return true;
+    }
+
+    @Override
+    void setDeserialized(int index, Object value) {
+        // Values are never kept deserialized
+    }
+
+    @Override
+    int count() {
+        return size;
+    }
+
+    @Override
+    LayerStorage copy() {
+        // Only for snapshots, which never change the storage or free the slots
+        OffHeapLayerStorage copy = new OffHeapLayerStorage(arena, codec, addresses.length, maxSparseSize);
+        System.arraycopy(addresses, 0, copy.addresses, 0, addresses.length);
+        copy.size = size;
+        return copy;
+    }
+
+    @Override
+    Object[] toArray() {
+        Object[] data = new Object[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] == 0)
+                continue;
+            ByteBuffer bytes = arena.read(addresses[i]);
+            if (bytes == null)
+                continue;
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.get(copy);
+            data[i] = copy;
+        }
+        return data;
+    }
+
+    @Override
+    void write(LayerData layer, DataOutputStream os) throws IOException {
+        // The slots hold the length before the data, so they are copied as is
+        if (size <= maxSparseSize) {
+            os.writeByte(LayerData.TAG_SPARSE);
+            os.writeShort(size);
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] == 0)
+                    continue;
+                os.writeShort(i);
+                arena.write(addresses[i], os);
+            }
+        } else {
+            os.writeByte(LayerData.TAG_FLAT);
+            for (int address : addresses) {
+                if (address == 0)
+                    os.writeShort(0);
+                else
+                    arena.write(address, os);
+            }
+        }
+    }
+
+}
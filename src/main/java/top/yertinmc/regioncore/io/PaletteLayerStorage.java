@@ -0,0 +1,254 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A layer storage with a palette of the distinct values and bit-packed palette indexes for the blocks.
+ * Index 0 of the palette is always null. Indexes do not span two words, like the chunk sections of Minecraft.
+ * <pre>
+ * byte  tag, LayerData#TAG_PALETTE
+ * short count of the values in the palette, not including null
+ * For every value in the palette:
+ *   short length of the data
+ *   ...   data
+ * long[] the indexes, bits of an index is the least bits for (count + 1) values
+ * </pre>
+ */
+final class PaletteLayerStorage extends LayerStorage {
+
+    private final int blockCount;
+    private final int maxSize;
+    private Object[] palette;
+    private int size;
+    private int bits;
+    private long[] words;
+
+    /**
+     * Create an empty storage.
+     *
+     * @param blockCount How many blocks in a layer
+     * @param maxSize    How many non-null values this palette can hold at most
+     */
+    PaletteLayerStorage(int blockCount, int maxSize) {
+        this(blockCount, maxSize, new Object[Math.min(maxSize + 1, 4)], 1, 1);
+    }
+
+    private PaletteLayerStorage(int blockCount, int maxSize, Object[] palette, int size, int bits) {
+        this.blockCount = blockCount;
+        this.maxSize = maxSize;
+        this.palette = palette;
+        this.size = size;
+        this.bits = bits;
+        this.words = new long[wordCount(blockCount, bits)];
+    }
+
+    /**
+     * Try to put values into a palette.
+     *
+     * @param data    The values of all the blocks
+     * @param maxSize How many non-null values the palette can hold at most
+     * @return The storage, or null if too many distinct values
+     */
+    static @Nullable PaletteLayerStorage of(Object[] data, int maxSize) {
+        PaletteLayerStorage storage = new PaletteLayerStorage(data.length, maxSize);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != null && !storage.set(i, data[i]))
+                return null;
+        }
+        return storage;
+    }
+
+    /**
+     * Deserialize a storage, after the tag.
+     *
+     * @param buffer     The buffer
+     * @param blockCount How many blocks in a layer
+     * @param maxSize    How many non-null values the palette can hold at most
+     * @return The storage
+     */
+    static PaletteLayerStorage read(ByteBuffer buffer, int blockCount, int maxSize) throws IOException {
+        int count = buffer.getShort();
+        if (count < 0)
+            throw new IOException("Illegal palette size " + count);
+        Object[] palette = new Object[count + 1];
+        for (int i = 1; i <= count; i++) {
+            short length = buffer.getShort();
+            if (length < 0)
+                throw new IOException("Illegal block data size " + length);
+            if (length > buffer.remaining())
+                throw new EOFException("Unexpected end of block data");
+            if (length == 0) // Read as null, like the flat layers
+                continue;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            palette[i] = bytes;
+        }
+        PaletteLayerStorage storage = new PaletteLayerStorage(blockCount, maxSize, palette, count + 1,
+                bitsFor(count + 1));
+        buffer.asLongBuffer().get(storage.words);
+        buffer.position(buffer.position() + storage.words.length * Long.BYTES);
+        for (int i = 0; i < blockCount; i++) {
+            if (storage.indexOf(i) > count)
+                throw new IOException("Palette index out of range");
+        }
+        return storage;
+    }
+
+    private static int bitsFor(int entries) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(entries - 1));
+    }
+
+    private static int wordCount(int blockCount, int bits) {
+        int perWord = 64 / bits;
+        return (blockCount + perWord - 1) / perWord;
+    }
+
+    private static boolean valueEquals(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[])
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        return Objects.equals(a, b);
+    }
+
+    @Override
+    Object get(int index) {
+        return palette[indexOf(index)];
+    }
+
+    @Override
+    boolean set(int index, Object value) {
+        int id = find(value);
+        if (id < 0) {
+            if (size > maxSize) {
+                compact();
+                if (size > maxSize)
+                    return false;
+            }
+            id = add(value);
+        }
+        setIndex(index, id);
+        return true;
+    }
+
+    @Override
+    void setDeserialized(int index, Object value) {
+        // Shared by all the blocks with the same value
+        palette[indexOf(index)] = value;
+    }
+
+    @Override
+    int count() {
+        int count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (get(i) != null)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    LayerStorage copy() {
+        PaletteLayerStorage copy = new PaletteLayerStorage(blockCount, maxSize, palette.clone(), size, bits);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    @Override
+    Object[] toArray() {
+        Object[] data = new Object[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            data[i] = get(i);
+        }
+        return data;
+    }
+
+    @Override
+    void write(LayerData layer, DataOutputStream os) throws IOException {
+        compact();
+        os.writeByte(LayerData.TAG_PALETTE);
+        os.writeShort(size - 1);
+        for (int i = 1; i < size; i++) {
+            layer.writeDatum(os, palette[i]);
+        }
+        for (long word : words) {
+            os.writeLong(word);
+        }
+    }
+
+    private int find(Object value) {
+        if (value == null)
+            return 0;
+        for (int i = 1; i < size; i++) {
+            if (valueEquals(palette[i], value))
+                return i;
+        }
+        return -1;
+    }
+
+    private int add(Object value) {
+        if (size == palette.length)
+            palette = Arrays.copyOf(palette, Math.min(size * 2, maxSize + 1));
+        palette[size++] = value;
+        int newBits = bitsFor(size);
+        if (newBits != bits)
+            repack(null, newBits);
+        return size - 1;
+    }
+
+    /**
+     * Remove the values no block using.
+     */
+    private void compact() {
+        boolean[] used = new boolean[size];
+        for (int i = 0; i < blockCount; i++) {
+            used[indexOf(i)] = true;
+        }
+        int[] mapping = new int[size];
+        int newSize = 1;
+        for (int i = 1; i < size; i++) {
+            if (used[i]) {
+                palette[newSize] = palette[i];
+                mapping[i] = newSize++;
+            }
+        }
+        if (newSize == size)
+            return;
+        Arrays.fill(palette, newSize, size, null);
+        size = newSize;
+        repack(mapping, bitsFor(size));
+    }
+
+    private void repack(int @Nullable [] mapping, int newBits) {
+        int[] indexes = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            int id = indexOf(i);
+            indexes[i] = mapping == null ? id : mapping[id];
+        }
+        bits = newBits;
+        words = new long[wordCount(blockCount, bits)];
+        for (int i = 0; i < blockCount; i++) {
+            setIndex(i, indexes[i]);
+        }
+    }
+
+    private int indexOf(int block) {
+        int perWord = 64 / bits;
+        int shift = (block % perWord) * bits;
+        return (int) ((words[block / perWord] >>> shift) & ((1L << bits) - 1));
+    }
+
+    private void setIndex(int block, int id) {
+        int perWord = 64 / bits;
+        int shift = (block % perWord) * bits;
+        long mask = ((1L << bits) - 1) << shift;
+        int word = block / perWord;
+        words[word] = (words[word] & ~mask) | ((long) id << shift);
+    }
+
+}
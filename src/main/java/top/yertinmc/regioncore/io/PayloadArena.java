@@ -0,0 +1,258 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An arena of the encoded block data of a region off the heap, in direct buffers.
+ * A block data is kept in a slot, addressed by an int, so the layers only keep tables of addresses and the heap does
+ * not grow with the blocks. Slots are sized in powers of two, and freed slots are linked in free lists kept in the
+ * slots themselves. Segments of freed arenas are pooled for other regions.
+ * <pre>
+ * For every slot:
+ *   short length of the data, or the address of the next free slot in the first 4 bytes if free
+ *   ...   data
+ * </pre>
+ * The arena is guarded by the lock of its region. Snapshots share the arena, and only read it: while any snapshot
+ * is not released, freed slots are not reused, so the data of snapshots is never overwritten.
+ *
+ * @see OffHeapLayerStorage
+ */
+public final class PayloadArena {
+
+    private static final int MIN_SLOT_SHIFT = 4;
+    private static final int MAX_SLOT_SHIFT = 16;
+    private static final int SLOT_CLASS_COUNT = MAX_SLOT_SHIFT - MIN_SLOT_SHIFT + 1;
+    private static final int OFFSET_BITS = 20;
+    private static final int OFFSET_MASK = (1 << OFFSET_BITS) - 1;
+    private static final int MIN_SEGMENT_SHIFT = 12;
+    private static final int MAX_SEGMENT_SHIFT = OFFSET_BITS;
+    private static final int MAX_SEGMENTS = 1 << (31 - OFFSET_BITS);
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final AtomicLong RESERVED_BYTES = new AtomicLong();
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+    private static final List<Queue<ByteBuffer>> SEGMENT_POOL = new ArrayList<>(MAX_SEGMENT_SHIFT - MIN_SEGMENT_SHIFT + 1);
+    private static final ThreadLocal<byte[]> COPY_BUFFERS = ThreadLocal.withInitial(() -> new byte[1 << MAX_SLOT_SHIFT]);
+
+    static {
+        for (int shift = MIN_SEGMENT_SHIFT; shift <= MAX_SEGMENT_SHIFT; shift++) {
+            SEGMENT_POOL.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private volatile ByteBuffer[] segments = new ByteBuffer[4]; // Written with the region locked, read by snapshots
+    private int segmentCount;
+    private int top; // The first unused offset in the last segment
+    private final int[] freeSlots = new int[SLOT_CLASS_COUNT];
+    private int[] deferredFrees = new int[0];
+    private int deferredFreeCount;
+    private int snapshots; // Snapshots not released
+    private boolean regionReleased;
+    private long capacity;
+
+    /**
+     * Get how many bytes of direct buffers are taken by all the arenas, with the pooled segments.
+     *
+     * @return The bytes
+     */
+    public static long getReservedBytes() {
+        return RESERVED_BYTES.get();
+    }
+
+    /**
+     * Copy a block data into a new slot.
+     *
+     * @param data The bytes of the block data, the remaining bytes are copied
+     * @return The address, never 0
+     */
+    int allocate(ByteBuffer data) {
+        int length = data.remaining();
+        if (length > Short.MAX_VALUE)
+            throw new UnsupportedOperationException("Block data too large.");
+        int address = allocateSlot(slotClass(length + Short.BYTES));
+        ByteBuffer slot = slot(address);
+        slot.putShort((short) length);
+        slot.put(data.duplicate());
+        return address;
+    }
+
+    private int allocateSlot(int slotClass) {
+        if (regionReleased)
+            throw new IllegalStateException("Arena released");
+        int address = freeSlots[slotClass];
+        if (address != 0) {
+            freeSlots[slotClass] = slot(address).getInt();
+            return address;
+        }
+        int size = 1 << (slotClass + MIN_SLOT_SHIFT);
+        if (segmentCount == 0 || top + size > segments[segmentCount - 1].capacity()) {
+            addSegment(size);
+            if (segmentCount == 1)
+                top = 1 << MIN_SLOT_SHIFT; // Address 0 is never allocated, so it marks blocks without data
+        }
+        address = ((segmentCount - 1) << OFFSET_BITS) | top;
+        top += size;
+        return address;
+    }
+
+    private void addSegment(int minSize) {
+        if (segmentCount == MAX_SEGMENTS)
+            throw new IllegalStateException("Arena full");
+        int shift = MIN_SEGMENT_SHIFT;
+        if (segmentCount != 0) // Doubled for every segment
+            shift = Math.min(MAX_SEGMENT_SHIFT, Integer.numberOfTrailingZeros(segments[segmentCount - 1].capacity()) + 1);
+        while ((1 << shift) < minSize) {
+            shift++;
+        }
+        ByteBuffer segment = SEGMENT_POOL.get(shift - MIN_SEGMENT_SHIFT).poll();
+        if (segment != null) {
+            POOLED_BYTES.addAndGet(-segment.capacity());
+        } else {
+            segment = ByteBuffer.allocateDirect(1 << shift);
+            RESERVED_BYTES.addAndGet(segment.capacity());
+        }
+        ByteBuffer[] segments = this.segments;
+        if (segmentCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        segments[segmentCount++] = segment;
+        this.segments = segments; // Published after filled
+        capacity += segment.capacity();
+        top = 0;
+    }
+
+    /**
+     * Free a slot. If any snapshot is not released, the slot is reused after they released.
+     *
+     * @param address The address
+     */
+    void free(int address) {
+        if (snapshots > 0) {
+            if (deferredFreeCount == deferredFrees.length)
+                deferredFrees = Arrays.copyOf(deferredFrees, Math.max(16, deferredFreeCount * 2));
+            deferredFrees[deferredFreeCount++] = address;
+            return;
+        }
+        ByteBuffer slot = slot(address);
+        int slotClass = slotClass(slot.getShort(slot.position()) + Short.BYTES);
+        slot.putInt(freeSlots[slotClass]);
+        freeSlots[slotClass] = address;
+    }
+
+    /**
+     * Get the bytes of a block data. The bytes are not copied.
+     *
+     * @param address The address
+     * @return The read-only buffer of the data, or null if this arena has been freed
+     */
+    @Nullable ByteBuffer read(int address) {
+        ByteBuffer[] segments = this.segments;
+        if (segments == null)
+            return null;
+        ByteBuffer slot = segments[address >>> OFFSET_BITS].duplicate();
+        int offset = address & OFFSET_MASK;
+        int length = slot.getShort(offset);
+        slot.limit(offset + Short.BYTES + length).position(offset + Short.BYTES);
+        return slot.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Write a block data with its length before, as layers are serialized.
+     *
+     * @param address The address
+     * @param os      The output stream
+     * @see LayerData#writeDatum(DataOutputStream, Object)
+     */
+    void write(int address, DataOutputStream os) throws IOException {
+        ByteBuffer slot = segments[address >>> OFFSET_BITS].duplicate();
+        int offset = address & OFFSET_MASK;
+        int length = Short.BYTES + slot.getShort(offset);
+        byte[] bytes = COPY_BUFFERS.get();
+        slot.position(offset);
+        slot.get(bytes, 0, length);
+        os.write(bytes, 0, length);
+    }
+
+    /**
+     * Keep this arena for a snapshot, freed slots are not reused until the snapshot released.
+     */
+    void retain() {
+        if (regionReleased)
+            throw new IllegalStateException("Arena released");
+        snapshots++;
+    }
+
+    /**
+     * Release this arena by a snapshot or the region. The slots freed while the snapshots kept it are reused after
+     * all the snapshots released, and the segments are given back after the region and all the snapshots released.
+     *
+     * @param snapshot TRUE if released by a snapshot, else by the region
+     */
+    void release(boolean snapshot) {
+        if (snapshot) {
+            if (--snapshots > 0)
+                return;
+        } else {
+            if (regionReleased)
+                return;
+            regionReleased = true;
+        }
+        if (snapshots > 0)
+            return;
+        if (!regionReleased) {
+            int count = deferredFreeCount;
+            deferredFreeCount = 0;
+            for (int i = 0; i < count; i++) {
+                free(deferredFrees[i]);
+            }
+            if (deferredFrees.length > 1024) // Not kept large after a snapshot with many changes
+                deferredFrees = new int[0];
+            return;
+        }
+        ByteBuffer[] segments = this.segments;
+        this.segments = null;
+        for (int i = 0; i < segmentCount; i++) {
+            ByteBuffer segment = segments[i];
+            if (POOLED_BYTES.addAndGet(segment.capacity()) <= MAX_POOLED_BYTES) {
+                segment.clear();
+                SEGMENT_POOL.get(Integer.numberOfTrailingZeros(segment.capacity()) - MIN_SEGMENT_SHIFT).offer(segment);
+            } else {
+                // Freed by the collector
+                POOLED_BYTES.addAndGet(-segment.capacity());
+                RESERVED_BYTES.addAndGet(-segment.capacity());
+            }
+        }
+        segmentCount = 0;
+        capacity = 0;
+    }
+
+    /**
+     * Get how many bytes of direct buffers this arena takes.
+     *
+     * @return The bytes
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    private ByteBuffer slot(int address) {
+        ByteBuffer slot = segments[address >>> OFFSET_BITS].duplicate();
+        slot.position(address & OFFSET_MASK);
+        return slot;
+    }
+
+    private static int slotClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SLOT_SHIFT) - 1);
+        return shift - MIN_SLOT_SHIFT;
+    }
+
+}
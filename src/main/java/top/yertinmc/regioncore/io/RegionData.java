@@ -2,27 +2,44 @@ package top.yertinmc.regioncore.io;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import top.yertinmc.regioncore.ChunkUsingPlaceholder;
 import top.yertinmc.regioncore.WorldRegionDataManager;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 /**
  * A region. A set of <code>ChunkData</code>.
+ * Chunks read from region files are kept encoded, and decoded when first got.
+ * If the definition keeps block data off heap, the data of all the layers is in the arena of this region, shared
+ * with the snapshots.
  *
  * @see ChunkData
  */
 public class RegionData {
 
+    private static final ThreadLocal<EncodeBuffer> CHUNK_BUFFERS = EncodeBuffer.newPool(16 * 1024);
+
     private final @NotNull WorldRegionDataManager<?> manager;
     private final @Nullable Object[] chunks;
+    private final @Nullable PayloadArena arena;
+    private final boolean snapshot;
+    private @Nullable BitSet dirtyChunks; // Of snapshots, the chunks changed when copied
 
     public RegionData(@NotNull WorldRegionDataManager<?> manager) {
+        this(manager, manager.getManager().getDefinition().offHeap ? new PayloadArena() : null, false);
+    }
+
+    private RegionData(@NotNull WorldRegionDataManager<?> manager, @Nullable PayloadArena arena, boolean snapshot) {
         this.manager = manager;
         final int regionSize = manager.getManager().getDefinition().regionSize;
         this.chunks = new Object[regionSize * regionSize];
+        this.arena = arena;
+        this.snapshot = snapshot;
     }
 
     /**
@@ -38,30 +55,173 @@ public class RegionData {
     }
 
     /**
-     * Serialize this region.
+     * Serialize this region in the region file format.
+     * Only the chunks changed since read or saved are serialized, the bytes of other chunks are copied.
      *
      * @param os The output stream
+     * @see RegionFile
      */
     public void write(DataOutputStream os) throws IOException {
+        ByteBuffer[] payloads = new ByteBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            payloads[i] = encodeChunk(i);
+        }
+        manager.getManager().getDefinition().codec.sync();
+        RegionFile.write(os, manager.getManager().getDefinition().regionSize, payloads,
+                manager.getManager().getDefinition().compression);
+    }
+
+    /**
+     * Write the chunks changed since read or saved to a region file in place.
+     * Chunks of a snapshot are the chunks changed when copied, even if encoded since.
+     *
+     * @param file The region file
+     * @return How many chunks written
+     */
+    public int writeChunks(RegionFile file) throws IOException {
+        int[] indexes = new int[chunks.length];
+        ByteBuffer[] payloads = new ByteBuffer[chunks.length];
+        int count = 0;
         for (int i = 0; i < chunks.length; i++) {
             Object chunk = chunks[i];
-            if (!(chunk instanceof ChunkData) || !((ChunkData) chunk).isEmpty()) {
-                os.writeBoolean(false);
-                if (chunk instanceof ChunkData) // Empty
-                    chunks[i] = ((ChunkData) chunk).isUsing() ? ChunkUsingPlaceholder.INSTANCE : null;
-            } else {
-                os.writeBoolean(true);
-                ((ChunkData) chunk).write(os);
+            boolean changed = chunk instanceof ChunkData ? isChunkDirty(i) :
+                    !(chunk instanceof ByteBuffer) && file.hasChunk(i); // Encoded chunks are not changed
+            if (changed) {
+                indexes[count] = i;
+                payloads[count++] = encodeChunk(i);
             }
         }
+        if (count != 0) {
+            manager.getManager().getDefinition().codec.sync();
+            file.writeChunks(indexes, payloads, count);
+        }
+        return count;
+    }
+
+    /**
+     * Encode all the chunks changed since read or saved, so writing this region later only copies bytes.
+     * Should be called on snapshots only, which still know the chunks changed after encoded.
+     *
+     * @see RegionData#snapshot()
+     */
+    public void encodeChunks() throws IOException {
+        for (int i = 0; i < chunks.length; i++) {
+            encodeChunk(i);
+        }
+    }
+
+    /**
+     * How many chunks changed since read or saved? Of a snapshot, how many chunks changed when copied.
+     *
+     * @return The count
+     */
+    public int getDirtyChunkCount() {
+        if (dirtyChunks != null)
+            return dirtyChunks.cardinality();
+        int count = 0;
+        for (Object chunk : chunks) {
+            if (chunk instanceof ChunkData && ((ChunkData) chunk).isDirty())
+                count++;
+        }
+        return count;
+    }
+
+    private boolean isChunkDirty(int index) {
+        if (dirtyChunks != null) // Encoding the snapshot marks the chunks saved
+            return dirtyChunks.get(index);
+        Object chunk = chunks[index];
+        return chunk instanceof ChunkData && ((ChunkData) chunk).isDirty();
+    }
+
+    private @Nullable ByteBuffer encodeChunk(int index) throws IOException {
+        Object chunk = chunks[index];
+        if (chunk instanceof ByteBuffer) // Not decoded since read
+            return ((ByteBuffer) chunk).duplicate();
+        if (!(chunk instanceof ChunkData) || ((ChunkData) chunk).isEmpty())
+            return null;
+        ChunkData data = (ChunkData) chunk;
+        ByteBuffer encoded = data.getEncoded();
+        if (encoded == null) {
+            EncodeBuffer buffer = EncodeBuffer.acquire(CHUNK_BUFFERS);
+            try {
+                data.write(new DataOutputStream(buffer));
+                encoded = buffer.copy(0, buffer.size());
+            } finally {
+                EncodeBuffer.release(CHUNK_BUFFERS);
+            }
+            data.setEncoded(encoded.asReadOnlyBuffer());
+        }
+        return encoded;
+    }
+
+    /**
+     * Estimate how many bytes of memory this region takes.
+     * Chunks not decoded take the bytes read, and decoded chunks are estimated by their blocks.
+     *
+     * @return The bytes
+     */
+    public long estimateSize() {
+        long size = (long) chunks.length * Integer.BYTES;
+        if (arena != null)
+            size += arena.getCapacity();
+        for (Object chunk : chunks) {
+            if (chunk instanceof ByteBuffer)
+                size += ((ByteBuffer) chunk).remaining();
+            else if (chunk instanceof ChunkData)
+                size += ((ChunkData) chunk).estimateSize();
+        }
+        return size;
+    }
+
+    /**
+     * Give the bytes saved from this snapshot back to the region copied from.
+     * Should be called with the region locked.
+     *
+     * @see RegionData#snapshot()
+     * @see ChunkData#publishEncoded()
+     */
+    public void publishEncoded() {
+        for (Object chunk : chunks) {
+            if (chunk instanceof ChunkData)
+                ((ChunkData) chunk).publishEncoded();
+        }
+    }
+
+    /**
+     * Copy this region for saving in background.
+     * Chunks and layers are copied, but the block values are shared.
+     * Snapshots of regions off heap keep the arena, they should be released after written.
+     * The chunks changed are recorded, so they are still written in place after the snapshot encoded.
+     *
+     * @return The snapshot
+     * @see RegionData#release()
+     */
+    public RegionData snapshot() {
+        if (arena != null)
+            arena.retain();
+        RegionData snapshot = new RegionData(manager, arena, true);
+        BitSet dirtyChunks = new BitSet(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            Object chunk = chunks[i];
+            if (chunk instanceof ChunkData) {
+                snapshot.chunks[i] = ((ChunkData) chunk).copy(snapshot);
+                if (((ChunkData) chunk).isDirty())
+                    dirtyChunks.set(i);
+            } else if (chunk instanceof ByteBuffer) // Read only, shared
+                snapshot.chunks[i] = chunk;
+        }
+        snapshot.dirtyChunks = dirtyChunks;
+        return snapshot;
     }
 
     /**
-     * Deserialize a region.
+     * Deserialize a region in the legacy format, which is a single stream of all the chunks.
      *
      * @param manager The world region data manager
      * @param is      The input stream
+     * @deprecated Only for migrating legacy files, use {@link RegionData#read(WorldRegionDataManager, ByteBuffer)}
      */
+    @Deprecated
     public static RegionData read(WorldRegionDataManager<?> manager, DataInputStream is) throws IOException {
         RegionData data = new RegionData(manager);
         for (int i = 0; i < data.chunks.length; i++) {
@@ -74,6 +234,44 @@ public class RegionData {
         return data;
     }
 
+    /**
+     * Deserialize a region. Both the region file format and the legacy format are supported.
+     * Chunks in the region file format are not decoded until got, legacy files are decoded all at once.
+     *
+     * @param manager The world region data manager
+     * @param buffer  The buffer with all the bytes of a region file
+     * @see RegionFile#isRegionFile(ByteBuffer)
+     */
+    public static RegionData read(WorldRegionDataManager<?> manager, ByteBuffer buffer) throws IOException {
+        if (!RegionFile.isRegionFile(buffer))
+            return readLegacy(manager, buffer);
+        RegionData data = new RegionData(manager);
+        ByteBuffer[] chunks = RegionFile.readChunks(buffer, manager.getManager().getDefinition().regionSize);
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null)
+                data.chunks[i] = chunks[i].asReadOnlyBuffer();
+        }
+        return data;
+    }
+
+    /**
+     * Deserialize a region in the legacy format, which is a single stream of all the chunks.
+     *
+     * @param manager The world region data manager
+     * @param buffer  The buffer
+     */
+    public static RegionData readLegacy(WorldRegionDataManager<?> manager, ByteBuffer buffer) throws IOException {
+        RegionData data = new RegionData(manager);
+        for (int i = 0; i < data.chunks.length; i++) {
+            if (buffer.get() != 0) {
+                data.chunks[i] = ChunkData.read(data, buffer);
+            } else {
+                data.chunks[i] = null;
+            }
+        }
+        return data;
+    }
+
     /**
      * Get or initialize the chunk data with given chunk position.
      *
@@ -83,26 +281,84 @@ public class RegionData {
      */
     public ChunkData getOrInitChunkData(int x, int z) {
         Object data = getChunkData(x, z);
-        if (data == null || data instanceof ChunkUsingPlaceholder) {
-            boolean isUsing = data != null;
+        if (data == null)
             data = chunks[getIndex(x, z)] = new ChunkData(this);
-            if (isUsing)
-                ((ChunkData) data).markUsing();
-        }
         return (ChunkData) data;
     }
 
     /**
-     * Get the chunk data with given chunk position.
+     * Get the chunk data with given chunk position. The chunk is decoded if not yet,
+     * so this should be called with the region locked for writing.
      *
      * @param x The X position of the chunk
      * @param z The Z position of the chunk
-     * @return The chunk data or UsingChunkPlaceholder
+     * @return The chunk data, or null if not created
+     * @throws UncheckedIOException If the chunk can not be decoded
      */
     public @Nullable Object getChunkData(int x, int z) {
+        int index = getIndex(x, z);
+        Object chunk = chunks[index];
+        if (chunk instanceof ByteBuffer) {
+            try {
+                chunk = chunks[index] = ChunkData.read(this, ((ByteBuffer) chunk).duplicate());
+            } catch (IOException | BufferUnderflowException e) {
+                throw new UncheckedIOException(new IOException("Error decoding chunk " + x + "," + z + " of region", e));
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Remove a chunk just become empty, so it is not kept until saved.
+     *
+     * @param chunk The chunk
+     * @param index The index of the chunk, or -1 to search for it
+     * @see ChunkData#isEmpty()
+     */
+    void removeChunk(ChunkData chunk, int index) {
+        if (index >= 0) {
+            if (chunks[index] == chunk)
+                chunks[index] = null;
+            return;
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] == chunk) {
+                chunks[i] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the chunk data with given chunk position without decoding.
+     *
+     * @param x The X position of the chunk
+     * @param z The Z position of the chunk
+     * @return The chunk data, the bytes of a chunk not decoded, or null if not created
+     */
+    public @Nullable Object peekChunkData(int x, int z) {
         return chunks[getIndex(x, z)];
     }
 
+    /**
+     * Release the block data off heap of this region or snapshot, should be called with the region locked.
+     * The arena is freed after the region and all its snapshots released. Blocks off heap of a released region are
+     * read as null, and can not be set.
+     */
+    public void release() {
+        if (arena != null)
+            arena.release(snapshot);
+    }
+
+    /**
+     * Get the arena of the block data off heap.
+     *
+     * @return The arena, or null if block data is kept on heap
+     */
+    public @Nullable PayloadArena getArena() {
+        return arena;
+    }
+
     /**
      * Get the world region data manager.
      *
@@ -114,8 +370,9 @@ public class RegionData {
 
     /**
      * Get all the chunks in this region, un-initialized chunks will be null.
+     * Chunks not decoded are read only byte buffers.
      *
-     * @return The chunks or UsingChunkPlaceholder
+     * @return The chunks, or the bytes of chunks not decoded
      */
     public @Nullable Object[] getChunks() {
         return chunks;
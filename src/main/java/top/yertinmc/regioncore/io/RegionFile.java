@@ -0,0 +1,439 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * A sector based region file, similar to the Anvil format.
+ * Every chunk is saved in its own sectors, so a chunk can be read or rewritten without touching the others.
+ * <pre>
+ * Header, 16 bytes:
+ *   int   magic, "RCRF"
+ *   short version
+ *   byte  sector shift, a sector is (1 &lt;&lt; shift) bytes
+ *   byte  compression of the chunks written, see ChunkCompression
+ *   int   region size
+ *   int   reserved
+ * Offset table, 8 bytes for every chunk, ordered as RegionData#getIndex:
+ *   int   offset of the chunk in sectors, 0 if not saved
+ *   int   length of the chunk in bytes
+ * Chunks, each starts at a sector boundary:
+ *   byte  compression
+ *   ...   chunk data compressed, see ChunkData#write
+ * </pre>
+ * Rewriting a chunk writes it to free sectors first and updates the offset table after, so a crash never leaves
+ * the offset table pointing to a partly written chunk.
+ * Chunks are compressed alone, and saved uncompressed if compressing does not make them smaller.
+ *
+ * @see RegionData#write(java.io.DataOutputStream)
+ */
+@SuppressWarnings("unused")
+public class RegionFile implements Closeable {
+
+    /**
+     * The magic number at the start of region files, "RCRF".
+     */
+    public static final int MAGIC = 0x52435246;
+
+    /**
+     * The current version of the format.
+     */
+    public static final short VERSION = 1;
+
+    /**
+     * The sector shift of new region files, 4096 bytes a sector.
+     */
+    public static final int SECTOR_SHIFT = 12;
+
+    /**
+     * The smallest sector shift of region files read, 512 bytes a sector.
+     */
+    public static final int MIN_SECTOR_SHIFT = 9;
+
+    /**
+     * The largest sector shift of region files read, 1 MiB a sector.
+     */
+    public static final int MAX_SECTOR_SHIFT = 20;
+
+    /**
+     * The size of the fixed part of the header.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * The size of an entry in the offset table.
+     */
+    public static final int ENTRY_SIZE = 8;
+
+    /**
+     * The compression type of uncompressed chunks.
+     */
+    public static final byte COMPRESSION_NONE = 0;
+
+    private static final byte[] PADDING = new byte[1 << SECTOR_SHIFT];
+
+    private final File file;
+    private final FileChannel channel;
+    private final int regionSize;
+    private final int sectorShift;
+    private final ChunkCompression compression;
+    private final int[] offsets;
+    private final int[] lengths;
+    private long bytesWritten;
+    private final BitSet usedSectors = new BitSet();
+
+    /**
+     * Open a region file for reading and writing uncompressed chunks. The file will be created if not exists.
+     *
+     * @param file       The file
+     * @param regionSize The size of the region in chunks
+     * @throws IOException If the file is not a region file of this format
+     */
+    public RegionFile(File file, int regionSize) throws IOException {
+        this(file, regionSize, ChunkCompression.NONE);
+    }
+
+    /**
+     * Open a region file for reading and writing chunks. The file will be created if not exists.
+     *
+     * @param file        The file
+     * @param regionSize  The size of the region in chunks
+     * @param compression The compression of the chunks written
+     * @throws IOException If the file is not a region file of this format
+     */
+    public RegionFile(File file, int regionSize, ChunkCompression compression) throws IOException {
+        this.file = file;
+        this.regionSize = regionSize;
+        this.compression = compression;
+        this.offsets = new int[regionSize * regionSize];
+        this.lengths = new int[regionSize * regionSize];
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                this.sectorShift = SECTOR_SHIFT;
+                ByteBuffer header = ByteBuffer.allocate(headerSectors(regionSize, sectorShift) << sectorShift);
+                writeHeader(header, regionSize, sectorShift, compression);
+                header.flip();
+                writeFully(header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * ENTRY_SIZE);
+                readFully(header, 0);
+                header.flip();
+                this.sectorShift = readHeader(header, regionSize);
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = header.getInt();
+                    lengths[i] = header.getInt();
+                    if (offsets[i] != 0)
+                        usedSectors.set(offsets[i], offsets[i] + sectorCount(lengths[i]));
+                }
+            }
+            usedSectors.set(0, headerSectors(regionSize, sectorShift));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Is the buffer started with a region file header?
+     *
+     * @param buffer The buffer with the bytes of a file
+     * @return TRUE if in the region file format, or FALSE for legacy files
+     */
+    public static boolean isRegionFile(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * How many sectors the header and the offset table take?
+     *
+     * @param regionSize  The size of the region in chunks
+     * @param sectorShift The sector shift
+     * @return The count of sectors
+     */
+    public static int headerSectors(int regionSize, int sectorShift) {
+        int size = HEADER_SIZE + regionSize * regionSize * ENTRY_SIZE;
+        return (size + (1 << sectorShift) - 1) >>> sectorShift;
+    }
+
+    /**
+     * Read all the chunks from the bytes of a whole region file.
+     *
+     * @param buffer     The buffer with the bytes of the file
+     * @param regionSize The size of the region in chunks
+     * @return The chunk data of each chunk, or null for chunks not saved
+     */
+    public static @Nullable ByteBuffer[] readChunks(ByteBuffer buffer, int regionSize) throws IOException {
+        ByteBuffer header = buffer.duplicate();
+        int start = header.position();
+        int sectorShift = readHeader(header, regionSize);
+        ByteBuffer[] chunks = new ByteBuffer[regionSize * regionSize];
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = header.getInt();
+            int length = header.getInt();
+            if (offset == 0)
+                continue;
+            long position = start + ((long) offset << sectorShift);
+            if (length <= 0 || position + length > buffer.limit())
+                throw new EOFException("Chunk " + i + " out of the region file");
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.position((int) position).limit((int) position + length);
+            chunks[i] = decompress(chunk.slice());
+        }
+        return chunks;
+    }
+
+    /**
+     * Write a whole region file with uncompressed chunks.
+     *
+     * @param os         The output stream
+     * @param regionSize The size of the region in chunks
+     * @param chunks     The chunk data of each chunk, or null for chunks not saved
+     */
+    public static void write(DataOutputStream os, int regionSize, @Nullable ByteBuffer[] chunks) throws IOException {
+        write(os, regionSize, chunks, ChunkCompression.NONE);
+    }
+
+    /**
+     * Write a whole region file.
+     *
+     * @param os          The output stream
+     * @param regionSize  The size of the region in chunks
+     * @param chunks      The chunk data of each chunk, or null for chunks not saved
+     * @param compression The compression of the chunks
+     */
+    public static void write(DataOutputStream os, int regionSize, @Nullable ByteBuffer[] chunks,
+                             ChunkCompression compression) throws IOException {
+        ByteBuffer[] payloads = new ByteBuffer[chunks.length];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + chunks.length * ENTRY_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).put((byte) SECTOR_SHIFT).put(compression.getId())
+                .putInt(regionSize).putInt(0);
+        int sector = headerSectors(regionSize, SECTOR_SHIFT);
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] == null) {
+                header.putInt(0).putInt(0);
+            } else {
+                payloads[i] = compress(chunks[i], compression);
+                int length = payloads[i].remaining();
+                header.putInt(sector).putInt(length);
+                sector += (length + PADDING.length - 1) >>> SECTOR_SHIFT;
+            }
+        }
+        os.write(header.array(), 0, header.position());
+        pad(os, header.position());
+        for (ByteBuffer payload : payloads) {
+            if (payload == null)
+                continue;
+            EncodeBuffer.writeBuffer(os, payload);
+            pad(os, payload.remaining());
+        }
+    }
+
+    /**
+     * Read a chunk.
+     *
+     * @param index The index of the chunk
+     * @return The chunk data, or null if not saved
+     * @see RegionData#getIndex(int, int)
+     */
+    public synchronized @Nullable ByteBuffer readChunk(int index) throws IOException {
+        if (offsets[index] == 0)
+            return null;
+        ByteBuffer chunk = ByteBuffer.allocate(lengths[index]);
+        readFully(chunk, (long) offsets[index] << sectorShift);
+        chunk.flip();
+        return decompress(chunk);
+    }
+
+    /**
+     * Write a chunk in place. Other chunks in this file are not touched.
+     *
+     * @param index The index of the chunk
+     * @param chunk The chunk data, or null to remove the chunk
+     * @see RegionData#getIndex(int, int)
+     */
+    public void writeChunk(int index, @Nullable ByteBuffer chunk) throws IOException {
+        writeChunks(new int[]{index}, new ByteBuffer[]{chunk}, 1);
+    }
+
+    /**
+     * Write some chunks in place. Other chunks in this file are not touched.
+     * All the chunks are written before updating the offset table, so the file is synced only twice.
+     *
+     * @param indexes The indexes of the chunks
+     * @param chunks  The chunk data of each chunk, or null to remove the chunk
+     * @param count   How many chunks to write
+     * @see RegionData#getIndex(int, int)
+     */
+    public synchronized void writeChunks(int[] indexes, @Nullable ByteBuffer[] chunks, int count) throws IOException {
+        int[] newOffsets = new int[count];
+        int[] newLengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer chunk = chunks[i];
+            if (chunk == null)
+                continue;
+            ByteBuffer payload = compress(chunk, compression);
+            int length = payload.remaining();
+            int sectors = sectorCount(length);
+            int offset = allocate(sectors);
+            ByteBuffer data = ByteBuffer.allocate(sectors << sectorShift);
+            data.put(payload);
+            data.clear();
+            writeFully(data, (long) offset << sectorShift);
+            usedSectors.set(offset, offset + sectors);
+            newOffsets[i] = offset;
+            newLengths[i] = length;
+        }
+        channel.force(false);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            entry.clear();
+            entry.putInt(newOffsets[i]).putInt(newLengths[i]).flip();
+            writeFully(entry, HEADER_SIZE + (long) indexes[i] * ENTRY_SIZE);
+        }
+        channel.force(false);
+        for (int i = 0; i < count; i++) {
+            int index = indexes[i];
+            if (offsets[index] != 0)
+                usedSectors.clear(offsets[index], offsets[index] + sectorCount(lengths[index]));
+            offsets[index] = newOffsets[i];
+            lengths[index] = newLengths[i];
+        }
+    }
+
+    /**
+     * Is a chunk saved in this file?
+     *
+     * @param index The index of the chunk
+     * @return TRUE if saved
+     */
+    public synchronized boolean hasChunk(int index) {
+        return offsets[index] != 0;
+    }
+
+    /**
+     * Get the file.
+     *
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the size of the region in chunks.
+     *
+     * @return The size
+     */
+    public int getRegionSize() {
+        return regionSize;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private int allocate(int sectors) {
+        int start = usedSectors.nextClearBit(0);
+        while (true) {
+            int end = usedSectors.nextSetBit(start);
+            if (end < 0 || end - start >= sectors)
+                return start;
+            start = usedSectors.nextClearBit(end);
+        }
+    }
+
+    private int sectorCount(int length) {
+        return (length + (1 << sectorShift) - 1) >>> sectorShift;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of region file " + file);
+            position += read;
+        }
+    }
+
+    /**
+     * How many bytes written to this file since opened?
+     *
+     * @return The count
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        bytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeHeader(ByteBuffer header, int regionSize, int sectorShift,
+                                    ChunkCompression compression) {
+        header.putInt(MAGIC).putShort(VERSION).put((byte) sectorShift).put(compression.getId())
+                .putInt(regionSize).putInt(0);
+        header.position(header.capacity()); // Empty offset table
+    }
+
+    private static int readHeader(ByteBuffer header, int regionSize) throws IOException {
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a region file");
+        short version = header.getShort();
+        if (version > VERSION)
+            throw new IOException("Unsupported region file version " + version);
+        int sectorShift = header.get();
+        if (sectorShift < MIN_SECTOR_SHIFT || sectorShift > MAX_SECTOR_SHIFT)
+            throw new IOException("Unsupported sector shift " + sectorShift + " in the region file");
+        header.get(); // Compression of the chunks written, every chunk has its own
+        int size = header.getInt();
+        if (size != regionSize)
+            throw new IOException("Region size " + size + " in the file does not match " + regionSize);
+        header.getInt();
+        return sectorShift;
+    }
+
+    /**
+     * Compress a chunk with the compression byte before. Saved uncompressed if not smaller.
+     */
+    private static ByteBuffer compress(ByteBuffer chunk, ChunkCompression compression) throws IOException {
+        ByteBuffer compressed = compression.compress(chunk);
+        if (compressed.remaining() >= chunk.remaining()) {
+            compression = ChunkCompression.NONE;
+            compressed = chunk.duplicate();
+        }
+        ByteBuffer payload = ByteBuffer.allocate(compressed.remaining() + 1);
+        payload.put(compression.getId()).put(compressed);
+        payload.flip();
+        return payload;
+    }
+
+    private static ByteBuffer decompress(ByteBuffer chunk) throws IOException {
+        byte id = chunk.get();
+        ChunkCompression compression = ChunkCompression.byId(id);
+        if (compression == null)
+            throw new IOException("Unknown chunk compression " + id);
+        return compression.decompress(chunk.slice());
+    }
+
+    private static void pad(DataOutputStream os, int length) throws IOException {
+        int rest = length & (PADDING.length - 1);
+        if (rest != 0)
+            os.write(PADDING, 0, PADDING.length - rest);
+    }
+
+}
@@ -0,0 +1,89 @@
+package top.yertinmc.regioncore.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A reader to load region files.
+ * The whole file is read with channel reads into one buffer, then decoded from the buffer.
+ * The file is not mapped, so it is closed as soon as read and can be replaced while saving.
+ */
+public final class RegionFileReader {
+
+    private RegionFileReader() {
+    }
+
+    /**
+     * Read all the bytes of a file.
+     *
+     * @param file The file
+     * @return The buffer with the bytes, positioned at the start
+     */
+    public static ByteBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Region file too large: " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Unexpected end of region file " + file);
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Read and deserialize a region file.
+     *
+     * @param file    The file
+     * @param decoder The decoder of the content
+     * @param <T>     The type of the content
+     * @return The content
+     */
+    public static <T> T read(File file, Content<T> decoder) throws IOException {
+        return decode(file, read(file), decoder);
+    }
+
+    /**
+     * Deserialize the bytes read from a region file.
+     *
+     * @param file    The file, only for error messages
+     * @param buffer  The buffer with all the bytes of the file
+     * @param decoder The decoder of the content
+     * @param <T>     The type of the content
+     * @return The content
+     */
+    public static <T> T decode(File file, ByteBuffer buffer, Content<T> decoder) throws IOException {
+        try {
+            return decoder.read(buffer);
+        } catch (BufferUnderflowException e) {
+            throw (IOException) new EOFException("Unexpected end of region file " + file).initCause(e);
+        }
+    }
+
+    /**
+     * The content of a file.
+     *
+     * @param <T> The type of the content
+     */
+    @FunctionalInterface
+    public interface Content<T> {
+
+        /**
+         * Decode the content.
+         *
+         * @param buffer The buffer with all the bytes of the file
+         * @return The content
+         */
+        T read(ByteBuffer buffer) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,86 @@
+package top.yertinmc.regioncore.io;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A writer to save region files.
+ * The content is encoded into a pooled buffer first, then written to a temporary file with one channel write, and
+ * moved to the target file at last. So the target file is never truncated if crashed while saving.
+ */
+public final class RegionFileWriter {
+
+    private static final ThreadLocal<EncodeBuffer> BUFFERS = EncodeBuffer.newPool(64 * 1024);
+
+    private RegionFileWriter() {
+    }
+
+    /**
+     * Encode and write a file.
+     *
+     * @param file    The target file
+     * @param content The content to encode
+     * @return How many bytes written
+     */
+    public static long write(File file, Content content) throws IOException {
+        EncodeBuffer buffer = EncodeBuffer.acquire(BUFFERS);
+        try {
+            content.write(new DataOutputStream(buffer));
+            return write(file, buffer.toByteBuffer());
+        } finally {
+            EncodeBuffer.release(BUFFERS);
+        }
+    }
+
+    /**
+     * Write a file with encoded bytes.
+     *
+     * @param file The target file
+     * @param data The bytes
+     * @return How many bytes written
+     */
+    public static long write(File file, ByteBuffer data) throws IOException {
+        long size = data.remaining();
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists())
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        File temp = new File(directory, file.getName().concat(".tmp"));
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return size;
+    }
+
+    /**
+     * The content of a file.
+     */
+    @FunctionalInterface
+    public interface Content {
+
+        /**
+         * Encode the content.
+         *
+         * @param os The output stream
+         */
+        void write(DataOutputStream os) throws IOException;
+
+    }
+
+}
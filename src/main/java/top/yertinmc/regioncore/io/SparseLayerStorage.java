@@ -0,0 +1,206 @@
+package top.yertinmc.regioncore.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A layer storage with only the blocks having values, by sorted indexes. For layers nearly empty.
+ * Indexes are unsigned shorts, so layers with more than 65536 blocks can not be sparse.
+ * <pre>
+ * byte  tag, LayerData#TAG_SPARSE
+ * short count of the blocks with values
+ * For every block with value, in order of indexes:
+ *   short index of the block
+ *   short length of the data
+ *   ...   data
+ * </pre>
+ */
+final class SparseLayerStorage extends LayerStorage {
+
+    /**
+     * The most blocks of a layer can be indexed by unsigned shorts.
+     */
+    static final int MAX_BLOCK_COUNT = 1 << 16;
+
+    private final int blockCount;
+    private final int maxSize;
+    private short[] indexes;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Create an empty storage.
+     *
+     * @param blockCount How many blocks in a layer
+     * @param maxSize    How many blocks with values this storage can hold at most
+     */
+    SparseLayerStorage(int blockCount, int maxSize) {
+        this(blockCount, maxSize, Math.min(maxSize, 4));
+    }
+
+    private SparseLayerStorage(int blockCount, int maxSize, int capacity) {
+        this.blockCount = blockCount;
+        this.maxSize = maxSize;
+        this.indexes = new short[capacity];
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * Try to put values into a sparse storage.
+     *
+     * @param data    The values of all the blocks
+     * @param maxSize How many blocks with values the storage can hold at most
+     * @return The storage, or null if too many blocks with values
+     */
+    static @Nullable SparseLayerStorage of(Object[] data, int maxSize) {
+        SparseLayerStorage storage = new SparseLayerStorage(data.length, maxSize);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == null)
+                continue;
+            if (storage.size == maxSize)
+                return null;
+            storage.append(i, data[i]);
+        }
+        return storage;
+    }
+
+    /**
+     * Deserialize a storage, after the tag.
+     *
+     * @param buffer     The buffer
+     * @param blockCount How many blocks in a layer
+     * @param maxSize    How many blocks with values the storage can hold at most
+     * @return The storage
+     */
+    static SparseLayerStorage read(ByteBuffer buffer, int blockCount, int maxSize) throws IOException {
+        int count = buffer.getShort() & 0xFFFF;
+        if (count > blockCount)
+            throw new IOException("Illegal sparse layer size " + count);
+        SparseLayerStorage storage = new SparseLayerStorage(blockCount, Math.max(maxSize, count), count);
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int index = buffer.getShort() & 0xFFFF;
+            if (index <= last || index >= blockCount)
+                throw new IOException("Illegal sparse block index " + index);
+            last = index;
+            short length = buffer.getShort();
+            if (length < 0)
+                throw new IOException("Illegal block data size " + length);
+            if (length > buffer.remaining())
+                throw new EOFException("Unexpected end of block data");
+            if (length == 0)
+                continue;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            storage.append(index, bytes);
+        }
+        return storage;
+    }
+
+    @Override
+    Object get(int index) {
+        int i = search(index);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    boolean set(int index, Object value) {
+        int i = search(index);
+        if (i >= 0) {
+            if (value == null) {
+                System.arraycopy(indexes, i + 1, indexes, i, size - i - 1);
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                values[--size] = null;
+            } else {
+                values[i] = value;
+            }
+            return true;
+        }
+        if (value == null)
+            return true;
+        if (size >= maxSize)
+            return false;
+        i = -i - 1;
+        ensureCapacity();
+        System.arraycopy(indexes, i, indexes, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        indexes[i] = (short) index;
+        values[i] = value;
+        size++;
+        return true;
+    }
+
+    @Override
+    void setDeserialized(int index, Object value) {
+        values[search(index)] = value;
+    }
+
+    @Override
+    int count() {
+        return size;
+    }
+
+    @Override
+    LayerStorage copy() {
+        SparseLayerStorage copy = new SparseLayerStorage(blockCount, maxSize, size);
+        System.arraycopy(indexes, 0, copy.indexes, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    @Override
+    Object[] toArray() {
+        Object[] data = new Object[blockCount];
+        for (int i = 0; i < size; i++) {
+            data[indexes[i] & 0xFFFF] = values[i];
+        }
+        return data;
+    }
+
+    @Override
+    void write(LayerData layer, DataOutputStream os) throws IOException {
+        os.writeByte(LayerData.TAG_SPARSE);
+        os.writeShort(size);
+        for (int i = 0; i < size; i++) {
+            os.writeShort(indexes[i]);
+            layer.writeDatum(os, values[i]);
+        }
+    }
+
+    private int search(int index) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = indexes[mid] & 0xFFFF;
+            if (midIndex < index)
+                low = mid + 1;
+            else if (midIndex > index)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private void append(int index, Object value) {
+        ensureCapacity();
+        indexes[size] = (short) index;
+        values[size++] = value;
+    }
+
+    private void ensureCapacity() {
+        if (size == indexes.length) {
+            int capacity = Math.max(1, Math.min(size * 2, maxSize));
+            indexes = Arrays.copyOf(indexes, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package top.yertinmc.regioncore.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter only increasing. Counting is striped, so threads counting at the same time do not contend.
+ *
+ * @see RegionMetrics#counter(String)
+ */
+public final class Counter {
+
+    private final RegionMetrics metrics;
+    private final String name;
+    private final LongAdder value = new LongAdder();
+
+    Counter(RegionMetrics metrics, String name) {
+        this.metrics = metrics;
+        this.name = name;
+    }
+
+    /**
+     * Add one to this counter.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Add to this counter.
+     *
+     * @param delta How many to add, not negative
+     */
+    public void add(long delta) {
+        value.add(delta);
+        metrics.fireCount(this, delta);
+    }
+
+    /**
+     * Get the count.
+     *
+     * @return The count
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    /**
+     * Get the name of this counter.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + get();
+    }
+
+}
@@ -0,0 +1,43 @@
+package top.yertinmc.regioncore.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value measured when read, like how many regions are loaded.
+ *
+ * @see RegionMetrics#gauge(String, LongSupplier)
+ */
+public final class Gauge {
+
+    private final String name;
+    private final LongSupplier supplier;
+
+    Gauge(String name, LongSupplier supplier) {
+        this.name = name;
+        this.supplier = supplier;
+    }
+
+    /**
+     * Measure the value.
+     *
+     * @return The value
+     */
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    /**
+     * Get the name of this gauge.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + get();
+    }
+
+}
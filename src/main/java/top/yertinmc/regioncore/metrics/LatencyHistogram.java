@@ -0,0 +1,135 @@
+package top.yertinmc.regioncore.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, with a bucket for every power of 2.
+ * Recording is a few striped additions, and percentiles are the upper bounds of the buckets,
+ * so they are at most 2 times the real values.
+ *
+ * @see RegionMetrics#histogram(String)
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = Long.SIZE;
+
+    private final RegionMetrics metrics;
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT]; // Bucket i has durations below 2^i
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram(RegionMetrics metrics, String name) {
+        this.metrics = metrics;
+        this.name = name;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration in nanoseconds, negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets[BUCKET_COUNT - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+        metrics.fireLatency(this, nanos);
+    }
+
+    /**
+     * Record the duration since a start.
+     *
+     * @param startNanos The start, from <code>System.nanoTime()</code>
+     * @return The duration in nanoseconds
+     */
+    public long recordSince(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    /**
+     * How many durations recorded?
+     *
+     * @return The count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of all the durations.
+     *
+     * @return The sum in nanoseconds
+     */
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    /**
+     * Get the mean of the durations.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing recorded
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / count;
+    }
+
+    /**
+     * Get the longest duration.
+     *
+     * @return The duration in nanoseconds
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the durations.
+     *
+     * @param percentile The percentile, 0 to 100
+     * @return The upper bound of the bucket with the percentile in nanoseconds, not above the max
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] != 0)
+                return Math.min(getMaxNanos(), i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * Get the name of this histogram.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + " count " + getCount() + " mean " + getMeanNanos() + "ns max " + getMaxNanos() + "ns";
+    }
+
+}
@@ -0,0 +1,33 @@
+package top.yertinmc.regioncore.metrics;
+
+/**
+ * A listener of the counts and durations recorded, for exporting metrics to other systems.
+ * Listeners are called in the recording threads, often with a region locked, so they should return quickly.
+ * Gauges are not reported, read them when exporting.
+ * <p>
+ * Listeners can be added to a registry, or be services of this interface, found by <code>ServiceLoader</code>
+ * and added to every registry.
+ *
+ * @see RegionMetrics#addListener(MetricsListener)
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after a counter counted.
+     *
+     * @param counter The counter
+     * @param delta   How many added
+     */
+    default void onCount(Counter counter, long delta) {
+    }
+
+    /**
+     * Called after a duration recorded.
+     *
+     * @param histogram The histogram
+     * @param nanos     The duration in nanoseconds
+     */
+    default void onLatency(LatencyHistogram histogram, long nanos) {
+    }
+
+}
@@ -0,0 +1,189 @@
+package top.yertinmc.regioncore.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the metrics of a region data manager, with counters, gauges and latency histograms by names.
+ * Recording is striped and lock-free, so metrics are always on.
+ *
+ * @see top.yertinmc.regioncore.RegionDataManager#getMetrics()
+ */
+public final class RegionMetrics {
+
+    /**
+     * How long constructing a loaded region takes, reading and indexing its file.
+     */
+    public static final String REGION_LOAD = "region.load";
+
+    /**
+     * How long writing a region takes, encoding and writing its file.
+     */
+    public static final String REGION_SAVE = "region.save";
+
+    /**
+     * How long threads wait for the monitor of a world manager.
+     */
+    public static final String WORLD_MONITOR_WAIT = "world.monitor.wait";
+
+    /**
+     * How many bytes of region files read.
+     */
+    public static final String BYTES_READ = "region.bytes.read";
+
+    /**
+     * How many bytes of region files written.
+     */
+    public static final String BYTES_WRITTEN = "region.bytes.written";
+
+    /**
+     * How many region writes failed.
+     */
+    public static final String SAVE_FAILURES = "region.save.failures";
+
+    /**
+     * How many regions unloaded.
+     */
+    public static final String REGION_UNLOADS = "region.unloads";
+
+    /**
+     * How many idle regions used again before unloaded.
+     */
+    public static final String IDLE_REGION_HITS = "region.idle.hits";
+
+    /**
+     * How long commits of mutation journals take, with the fsync.
+     */
+    public static final String JOURNAL_COMMIT = "journal.commit";
+
+    /**
+     * How many records appended to mutation journals.
+     */
+    public static final String JOURNAL_RECORDS = "journal.records";
+
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean hasListeners;
+
+    public RegionMetrics() {
+        try {
+            for (MetricsListener listener : ServiceLoader.load(MetricsListener.class,
+                    MetricsListener.class.getClassLoader())) {
+                addListener(listener);
+            }
+        } catch (ServiceConfigurationError ignored) {
+            // A broken service does not break the registry
+        }
+    }
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name The name
+     * @return The counter
+     */
+    public Counter counter(@NotNull String name) {
+        Counter counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, (key) -> new Counter(this, key));
+    }
+
+    /**
+     * Get or create a latency histogram.
+     *
+     * @param name The name
+     * @return The histogram
+     */
+    public LatencyHistogram histogram(@NotNull String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram != null ? histogram :
+                histograms.computeIfAbsent(name, (key) -> new LatencyHistogram(this, key));
+    }
+
+    /**
+     * Register a gauge, replacing the gauge with the same name.
+     *
+     * @param name     The name
+     * @param supplier Measures the value when read
+     * @return The gauge
+     */
+    public Gauge gauge(@NotNull String name, @NotNull LongSupplier supplier) {
+        Gauge gauge = new Gauge(name, supplier);
+        gauges.put(name, gauge);
+        return gauge;
+    }
+
+    /**
+     * Get all the counters, by names in order.
+     *
+     * @return The counters
+     */
+    public Collection<Counter> getCounters() {
+        return Collections.unmodifiableCollection(counters.values());
+    }
+
+    /**
+     * Get all the gauges, by names in order.
+     *
+     * @return The gauges
+     */
+    public Collection<Gauge> getGauges() {
+        return Collections.unmodifiableCollection(gauges.values());
+    }
+
+    /**
+     * Get all the latency histograms, by names in order.
+     *
+     * @return The histograms
+     */
+    public Collection<LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableCollection(histograms.values());
+    }
+
+    /**
+     * Add a listener of the counts and durations recorded.
+     *
+     * @param listener The listener
+     */
+    public void addListener(@NotNull MetricsListener listener) {
+        listeners.add(listener);
+        hasListeners = true;
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener The listener
+     */
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+        hasListeners = !listeners.isEmpty();
+    }
+
+    void fireCount(Counter counter, long delta) {
+        if (!hasListeners)
+            return;
+        for (MetricsListener listener : listeners) {
+            listener.onCount(counter, delta);
+        }
+    }
+
+    void fireLatency(LatencyHistogram histogram, long nanos) {
+        if (!hasListeners)
+            return;
+        for (MetricsListener listener : listeners) {
+            listener.onLatency(histogram, nanos);
+        }
+    }
+
+}